@@ -48,9 +48,18 @@ public class InterpolatingTreeMap<K extends InverseInterpolable<K> & Comparable<
         return value;
     }
 
+    /**
+     * Inserts every key value pair of the map, trimming the tree as each is inserted
+     *
+     * @param map
+     *            Entries to insert
+     * @see org.team2471.frc.lib.data.InterpolatingDoubleMap for an unboxed table of doubles
+     */
     @Override
     public void putAll(Map<? extends K, ? extends V> map) {
-        System.out.println("Unimplemented Method");
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
     }
 
     /**
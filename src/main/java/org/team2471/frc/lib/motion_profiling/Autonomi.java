@@ -1,6 +1,8 @@
 package org.team2471.frc.lib.motion_profiling;
 
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonEncodingException;
 import com.squareup.moshi.Moshi;
 import edu.wpi.first.networktables.NetworkTable;
 import edu.wpi.first.networktables.NetworkTableEntry;
@@ -8,8 +10,11 @@ import edu.wpi.first.networktables.NetworkTableInstance;
 import org.team2471.frc.lib.motion_profiling.following.DrivetrainParameters;
 import org.team2471.frc.lib.motion_profiling.following.RobotParameters;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 public class Autonomi {
     public RobotParameters robotParameters;
@@ -17,10 +22,19 @@ public class Autonomi {
 
     public Map<String, Autonomous> mapAutonomous = new LinkedHashMap<>();
 
-    private static JsonAdapter<Autonomi> jsonAdapter = new Moshi.Builder()
+    // resolved path handles, indexed by the int returned from resolve()
+    private transient Path2D[] resolvedPaths = new Path2D[8];
+    private transient String[] resolvedAutoNames = new String[8];
+    private transient String[] resolvedPathNames = new String[8];
+    private transient int resolvedCount = 0;
+
+    private static final Moshi moshi = new Moshi.Builder()
             .add(DrivetrainParameters.getMoshiAdapter())
-            .build()
-            .adapter(Autonomi.class).indent("\t");
+            .add(AutonomiSchema.versionFactory())
+            .add(AutonomiSchema.migrationFactory())
+            .build();
+
+    private static JsonAdapter<Autonomi> jsonAdapter = moshi.adapter(Autonomi.class).indent("\t");
 
     public Autonomous get(String name) {
         return mapAutonomous.get(name);
@@ -28,11 +42,60 @@ public class Autonomi {
 
     public void put(Autonomous autonomous) {
         mapAutonomous.put(autonomous.name, autonomous);
+        autonomous.setAutonomi(this);
+        rebindHandles(autonomous);
+    }
+
+    public Set<String> getAutonomousNames() {
+        return mapAutonomous.keySet();
     }
 
     public Path2D getPath(String autoName, String pathName) {
         Autonomous autonomous = get(autoName);
-        return autonomous.get(pathName);
+        return autonomous != null ? autonomous.get(pathName) : null;
+    }
+
+    /**
+     * Resolves a path by name into a handle which can be passed to {@link #getPath(int)}.
+     * Resolve once at startup and keep the handle, so that loops do an array lookup instead of two string hashes.
+     * Handles stay valid for the life of this Autonomi; if the path is missing or later replaced the handle
+     * follows whatever path is currently stored under those names (null if none).
+     *
+     * @return a stable handle for the given autonomous and path names
+     */
+    public int resolve(String autoName, String pathName) {
+        for (int i = 0; i < resolvedCount; i++) {
+            if (resolvedAutoNames[i].equals(autoName) && resolvedPathNames[i].equals(pathName))
+                return i;
+        }
+
+        if (resolvedCount == resolvedPaths.length) {
+            int capacity = resolvedCount * 2;
+            resolvedPaths = Arrays.copyOf(resolvedPaths, capacity);
+            resolvedAutoNames = Arrays.copyOf(resolvedAutoNames, capacity);
+            resolvedPathNames = Arrays.copyOf(resolvedPathNames, capacity);
+        }
+
+        int handle = resolvedCount++;
+        resolvedAutoNames[handle] = autoName;
+        resolvedPathNames[handle] = pathName;
+        resolvedPaths[handle] = getPath(autoName, pathName);
+        return handle;
+    }
+
+    /**
+     * @param handle a handle returned by {@link #resolve(String, String)}
+     * @return the path for the handle, or null if no such path is currently stored
+     */
+    public Path2D getPath(int handle) {
+        return resolvedPaths[handle];
+    }
+
+    void rebindHandles(Autonomous autonomous) {
+        for (int i = 0; i < resolvedCount; i++) {
+            if (resolvedAutoNames[i].equals(autonomous.name))
+                resolvedPaths[i] = getPath(resolvedAutoNames[i], resolvedPathNames[i]);
+        }
     }
 
     public String toJsonString() {
@@ -40,23 +103,42 @@ public class Autonomi {
     }
 
     static public Autonomi fromJsonString(String json) {
+        try {
+            return parse(json);
+        } catch (AutonomiParseException e) {
+            System.out.println("Constructing Autonomi class from json failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parses an Autonomi, upgrading documents written with an older {@link AutonomiSchema} version.
+     *
+     * @throws AutonomiParseException with the json path of the failure if the document cannot be read
+     */
+    static public Autonomi parse(String json) throws AutonomiParseException {
         Autonomi autonomi;
         try {
             autonomi = jsonAdapter.fromJson(json);
-        } catch (Exception e) {
-            System.out.println("Constructing Autonomi class from json failed.");
-            return null;
+        } catch (JsonDataException | JsonEncodingException e) {
+            throw new AutonomiParseException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new AutonomiParseException("Reading Autonomi json failed: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            throw new AutonomiParseException("Constructing Autonomi from json failed: " + e, e);
         }
 
-        if (autonomi != null)
-            autonomi.fixUpTailAndPrevPointers();
+        if (autonomi == null)
+            throw new AutonomiParseException("Autonomi json was null", null);
 
+        autonomi.fixUpTailAndPrevPointers();
         return autonomi;
     }
 
     private void fixUpTailAndPrevPointers() {
         for (Map.Entry<String, Autonomous> entry : mapAutonomous.entrySet()) {
             entry.getValue().fixUpTailAndPrevPointers();
+            entry.getValue().setAutonomi(this);
         }
     }
 
@@ -0,0 +1,10 @@
+package org.team2471.frc.lib.motion_profiling;
+
+/**
+ * Thrown when serialized {@link Autonomi} json cannot be read. The message includes the json path of the failure.
+ */
+public class AutonomiParseException extends Exception {
+    public AutonomiParseException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
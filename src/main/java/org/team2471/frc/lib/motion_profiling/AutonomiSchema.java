@@ -0,0 +1,215 @@
+package org.team2471.frc.lib.motion_profiling;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+import com.squareup.moshi.Moshi;
+import org.team2471.frc.lib.motion_profiling.following.ArcadeParameters;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioning for the serialized form of {@link Autonomi}.
+ * <p>
+ * Every document is written with a {@value #VERSION_KEY} field first. The fields of {@link Autonomi} itself are
+ * left to its normal Moshi adapter: the version is read by looking ahead over the top level names, unversioned
+ * documents are read as version 0, and only the objects whose type has a pending migration are buffered and upgraded
+ * as the parser reaches them; everything else streams straight into the normal Moshi adapters.
+ * <p>
+ * Version history:
+ * <ul>
+ * <li>0 - unversioned documents written before the schema was tracked</li>
+ * <li>1 - ArcadeParameters fields with non-zero defaults are always written</li>
+ * </ul>
+ * When a field of a serialized class changes, bump {@link #CURRENT_VERSION} and register a migration for the
+ * affected type in the static block below.
+ */
+public final class AutonomiSchema {
+    public static final int CURRENT_VERSION = 1;
+    public static final String VERSION_KEY = "schemaVersion";
+
+    /**
+     * Upgrades the raw json object of a single type by one version, in place.
+     */
+    interface Migration {
+        void migrate(Map<String, Object> json);
+    }
+
+    // migrations.get(type)[v] upgrades an object of that type from version v to v + 1, null if nothing changed
+    private static final Map<Class<?>, Migration[]> migrations = new HashMap<>();
+
+    // the version of the document currently being parsed on this thread
+    private static final ThreadLocal<Integer> documentVersion = ThreadLocal.withInitial(() -> CURRENT_VERSION);
+
+    static {
+        register(ArcadeParameters.class, 0, json -> {
+            // version 0 files were read without the kotlin defaults, which left these zeroed when missing
+            json.putIfAbsent("headingCorrectionIDecay", 1.0);
+            json.putIfAbsent("alignRobotToPath", true);
+        });
+    }
+
+    private AutonomiSchema() {
+    }
+
+    private static void register(Class<?> type, int fromVersion, Migration migration) {
+        Migration[] steps = migrations.computeIfAbsent(type, t -> new Migration[CURRENT_VERSION]);
+        steps[fromVersion] = migration;
+    }
+
+    /**
+     * @return a factory that upgrades old objects of every migrated type while they are parsed
+     */
+    static JsonAdapter.Factory migrationFactory() {
+        return new JsonAdapter.Factory() {
+            @Override
+            public JsonAdapter<?> create(Type type, Set<? extends Annotation> annotations, Moshi moshi) {
+                Migration[] steps = migrations.get(type);
+                if (steps == null || !annotations.isEmpty())
+                    return null;
+                return new MigratingAdapter<>(moshi.nextAdapter(this, type, annotations), steps);
+            }
+        };
+    }
+
+    /**
+     * @return a factory that reads and writes the version of the top level document around its normal adapter
+     */
+    static JsonAdapter.Factory versionFactory() {
+        return new JsonAdapter.Factory() {
+            @Override
+            public JsonAdapter<?> create(Type type, Set<? extends Annotation> annotations, Moshi moshi) {
+                if (type != Autonomi.class || !annotations.isEmpty())
+                    return null;
+                JsonAdapter<Autonomi> delegate = moshi.nextAdapter(this, type, annotations);
+                return new VersionedAdapter(delegate, moshi.adapter(Object.class));
+            }
+        };
+    }
+
+    /**
+     * Adds the version to the fields of {@link Autonomi}, which are all read and written by the delegate. The version
+     * is found with a look ahead over the top level names before the delegate reads anything, so it is known before
+     * any nested object is parsed wherever it appears; a document without it is read as version 0.
+     */
+    private static final class VersionedAdapter extends JsonAdapter<Autonomi> {
+        private static final JsonReader.Options NAMES = JsonReader.Options.of(VERSION_KEY);
+
+        private final JsonAdapter<Autonomi> delegate;
+        private final JsonAdapter<Object> objectAdapter;
+
+        VersionedAdapter(JsonAdapter<Autonomi> delegate, JsonAdapter<Object> objectAdapter) {
+            this.delegate = delegate;
+            this.objectAdapter = objectAdapter;
+        }
+
+        @Override
+        public Autonomi fromJson(JsonReader reader) throws IOException {
+            if (reader.peek() != JsonReader.Token.BEGIN_OBJECT)
+                return delegate.fromJson(reader);
+
+            Integer previous = documentVersion.get();
+            documentVersion.set(readVersion(reader.peekJson()));
+            try {
+                return delegate.fromJson(reader);  // skips the version, which isn't a field of Autonomi
+            } finally {
+                documentVersion.set(previous);
+            }
+        }
+
+        private static int readVersion(JsonReader peeked) throws IOException {
+            try {
+                peeked.beginObject();
+                while (peeked.hasNext()) {
+                    if (peeked.selectName(NAMES) == -1) {
+                        peeked.nextName();
+                        peeked.skipValue();
+                        continue;
+                    }
+
+                    int version = peeked.nextInt();
+                    if (version > CURRENT_VERSION) {
+                        throw new JsonDataException("Schema version " + version
+                                + " is newer than the supported version " + CURRENT_VERSION
+                                + " at path " + peeked.getPath());
+                    }
+                    return version;
+                }
+                return 0;
+            } finally {
+                peeked.close();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void toJson(JsonWriter writer, Autonomi value) throws IOException {
+            if (value == null) {
+                writer.nullValue();
+                return;
+            }
+
+            Map<String, Object> fields = (Map<String, Object>) delegate.toJsonValue(value);
+            Map<String, Object> json = new LinkedHashMap<>(fields.size() + 1);
+            json.put(VERSION_KEY, CURRENT_VERSION);
+            json.putAll(fields);
+            objectAdapter.toJson(writer, json);
+        }
+    }
+
+    private static final class MigratingAdapter<T> extends JsonAdapter<T> {
+        private final JsonAdapter<T> delegate;
+        private final Migration[] steps;
+        private final int upToDateVersion;
+
+        MigratingAdapter(JsonAdapter<T> delegate, Migration[] steps) {
+            this.delegate = delegate;
+            this.steps = steps;
+
+            int last = 0;
+            for (int i = 0; i < steps.length; i++) {
+                if (steps[i] != null)
+                    last = i + 1;
+            }
+            upToDateVersion = last;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T fromJson(JsonReader reader) throws IOException {
+            int version = documentVersion.get();
+            if (version >= upToDateVersion || reader.peek() != JsonReader.Token.BEGIN_OBJECT)
+                return delegate.fromJson(reader);  // nothing to upgrade, stream directly
+
+            String path = reader.getPath();
+            Map<String, Object> json = (Map<String, Object>) reader.readJsonValue();
+            for (int v = version; v < steps.length; v++) {
+                if (steps[v] == null)
+                    continue;
+                try {
+                    steps[v].migrate(json);
+                } catch (RuntimeException e) {
+                    throw new JsonDataException("Migrating from schema version " + v + " failed at path " + path, e);
+                }
+            }
+
+            try {
+                return delegate.fromJsonValue(json);
+            } catch (JsonDataException e) {
+                throw new JsonDataException(e.getMessage() + " (within migrated object at path " + path + ")", e);
+            }
+        }
+
+        @Override
+        public void toJson(JsonWriter writer, T value) throws IOException {
+            delegate.toJson(writer, value);
+        }
+    }
+}
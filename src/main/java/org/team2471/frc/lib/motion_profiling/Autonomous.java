@@ -1,16 +1,18 @@
 package org.team2471.frc.lib.motion_profiling;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
 public class Autonomous {
 
     public String name;
-    public Map<String, Path2D> paths = new HashMap<>();
+    public Map<String, Path2D> paths = new LinkedHashMap<>();  // insertion ordered so choosers and handles are stable
 
     private boolean m_mirrored = false;
 
+    private transient Autonomi autonomi;
+
     public Autonomous(String name) {
         this.name = name;
     }
@@ -18,12 +20,18 @@ public class Autonomous {
     public void putPath(Path2D path2D) {
         paths.put(path2D.name, path2D);
         path2D.setAutonomous(this);
+        if (autonomi != null)
+            autonomi.rebindHandles(this);
     }
 
     public Path2D get(String name) {
         return paths.get(name);
     }
 
+    void setAutonomi(Autonomi autonomi) {
+        this.autonomi = autonomi;
+    }
+
     void fixUpTailAndPrevPointers() {
         for (Map.Entry<String, Path2D> entry : paths.entrySet()) {
             entry.getValue().fixUpTailAndPrevPointers();
@@ -123,6 +123,32 @@ public class Path2D {
         return rValue;
     }
 
+    // the same as getPosition, into out without allocating
+    public void getPosition(double time, Vector2 out) {
+        getPositionAtEase(getEase(time), out);
+    }
+
+    // the same as getTangent, into out without allocating
+    public void getTangent(double time, Vector2 out) {
+        double flipTangent = getRobotDirection() == RobotDirection.FORWARD ? 1.0 : -1.0;
+        getTangentAtEase(getEase(time), out);
+        out.set(out.getX() * flipTangent, out.getY() * flipTangent);
+    }
+
+    private double getEase(double time) {
+        if (m_easeCurve.getHeadKey() != null) {
+            if (speed > 0)
+                return m_easeCurve.getValue(time * speed);
+            else
+                return m_easeCurve.getValue(getDuration() - time * -speed);
+        } else {
+            if (speed > 0)
+                return time / 5.0 * speed;  // take 5 seconds to finish path (linear motion)
+            else
+                return getDuration() - time / 5.0 * -speed;
+        }
+    }
+
     public Vector2 getRobotDirection(double time) {
         return getTangent(time)
             .rotateDegrees(-m_headingCurve.getValue(time));
@@ -144,6 +170,18 @@ public class Path2D {
         return rValue;
     }
 
+    public void getPositionAtEase(double ease, Vector2 out) {
+        m_xyCurve.getPositionAtDistance(ease * m_xyCurve.getLength(), out);
+        if (isMirrored())
+            out.setX(-out.getX());
+    }
+
+    public void getTangentAtEase(double ease, Vector2 out) {
+        m_xyCurve.getTangentAtDistance(ease * m_xyCurve.getLength(), out);
+        if (isMirrored())
+            out.setX(-out.getX());
+    }
+
     public Vector2 getSidePosition(double time, double xOffset) {  // offset can be positive or negative (half the width of the robot)
         Vector2 centerPosition = getPosition(time);
         Vector2 tangent = getTangent(time)
@@ -122,6 +122,32 @@ public class Path2DCurve {
         return point.getTangentAtDistance(m_lengthRemaining);
     }
 
+    // the same as getPositionAtDistance, into out without allocating
+    public void getPositionAtDistance(double distance, Vector2 out) {
+        Path2DPoint point = getPointBefore(distance);
+        if (point == null) {
+            if (m_tailPoint != null)
+                out.set(m_tailPoint.getPosition().getX(), m_tailPoint.getPosition().getY());
+            else
+                out.set(0.0, 0.0);
+            return;
+        }
+        point.getPositionAtDistance(m_lengthRemaining, out);
+    }
+
+    // the same as getTangentAtDistance, into out without allocating
+    public void getTangentAtDistance(double distance, Vector2 out) {
+        Path2DPoint point = getPointBefore(distance);
+        if (point == null) {  // distance exceeds path length
+            if (m_tailPoint != null)
+                out.set(m_tailPoint.getNextTangent().getX(), m_tailPoint.getNextTangent().getY());
+            else
+                out.set(0.0, 0.0);
+            return;
+        }
+        point.getTangentAtDistance(m_lengthRemaining, out);
+    }
+
     private Path2DPoint getPointBefore(double distance) {
         double length = 0;
         for (Path2DPoint point = m_headPoint; point != null && point.getNextPoint() != null; point = point.getNextPoint()) {  // should make this incremental
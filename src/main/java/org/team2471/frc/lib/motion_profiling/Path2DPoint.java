@@ -23,6 +23,8 @@ public class Path2DPoint {
     private transient CubicCoefficients1D m_yCoeff;
     private transient double m_segmentLength = 0;
     private transient double partialLength = -1, prevPartialLength;
+    // the forward difference step around the last distance looked up
+    private transient double stepX, stepY, stepPrevX, stepPrevY;
     private transient Path2DCurve m_path2DCurve = null;
     private transient Path2DPoint m_prevPoint = null;
 
@@ -404,31 +406,39 @@ public class Path2DPoint {
     }
 
     public Vector2 getPositionAtDistance(double distance) {
+        Vector2 rValue = new Vector2(0, 0);
+        getPositionAtDistance(distance, rValue);
+        return rValue;
+    }
 
-        Vector2 pos = new Vector2(0, 0);
-        Vector2 prevPos = new Vector2(0, 0);
-
-        if (partialLength < 0 || partialLength > distance) {
-            m_xCoeff.initFD(STEPS);
-            m_yCoeff.initFD(STEPS);
-            partialLength = 0;
-        }
-
-        while (partialLength <= distance) {
-            pos = new Vector2(m_xCoeff.bumpFD(), m_yCoeff.bumpFD());
-            prevPos = new Vector2(m_xCoeff.getFdPrevValue(), m_yCoeff.getFdPrevValue());
-            prevPartialLength = partialLength;
-            partialLength += pos.minus(prevPos).getLength();
-        }
+    // the same as getPositionAtDistance, into out without allocating
+    public void getPositionAtDistance(double distance, Vector2 out) {
+        stepToDistance(distance);
 
         double intoSegment = (distance - prevPartialLength) / (partialLength - prevPartialLength);  // linearly interpolate t based on distance of the surrounding steps
 
-        return prevPos.times(1.0f - intoSegment).plus(pos.times(intoSegment));
+        out.set(stepPrevX * (1.0 - intoSegment) + stepX * intoSegment,
+                stepPrevY * (1.0 - intoSegment) + stepY * intoSegment);
     }
 
     public Vector2 getTangentAtDistance(double distance) {
-        Vector2 pos = new Vector2(0, 0);
-        Vector2 prevPos = new Vector2(0, 0);
+        Vector2 rValue = new Vector2(0, 0);
+        getTangentAtDistance(distance, rValue);
+        return rValue;
+    }
+
+    // the same as getTangentAtDistance, into out without allocating
+    public void getTangentAtDistance(double distance, Vector2 out) {
+        stepToDistance(distance);
+        out.set(stepX - stepPrevX, stepY - stepPrevY);
+    }
+
+    // forward differences along the segment until the step that passes distance
+    private void stepToDistance(double distance) {
+        stepX = 0;
+        stepY = 0;
+        stepPrevX = 0;
+        stepPrevY = 0;
 
         if (partialLength < 0 || partialLength > distance) {
             m_xCoeff.initFD(STEPS);
@@ -437,13 +447,15 @@ public class Path2DPoint {
         }
 
         while (partialLength <= distance) {
-            pos = new Vector2(m_xCoeff.bumpFD(), m_yCoeff.bumpFD());
-            prevPos = new Vector2(m_xCoeff.getFdPrevValue(), m_yCoeff.getFdPrevValue());
+            stepX = m_xCoeff.bumpFD();
+            stepY = m_yCoeff.bumpFD();
+            stepPrevX = m_xCoeff.getFdPrevValue();
+            stepPrevY = m_yCoeff.getFdPrevValue();
             prevPartialLength = partialLength;
-            partialLength += pos.minus(prevPos).getLength();
+            double deltaX = stepX - stepPrevX;
+            double deltaY = stepY - stepPrevY;
+            partialLength += Math.sqrt(deltaX * deltaX + deltaY * deltaY);
         }
-
-        return pos.minus(prevPos);
     }
 
     public String toString() {
@@ -42,6 +42,7 @@ data class SwerveParameters(
     val kpHeading: Double,
     val kdHeading: Double,
     val kHeadingFeedForward: Double,
-    val alignRobotToPath: Boolean = false
+    val alignRobotToPath: Boolean = false,
+    val kPositionAccelFeedForward: Double = 0.0
 ) : DrivetrainParameters() {
 }
\ No newline at end of file
@@ -1,9 +1,18 @@
 package org.team2471.frc.lib.actuators
 
+import com.ctre.phoenix.motion.MotionProfileStatus
+import com.ctre.phoenix.motion.SetValueMotionProfile
+import com.ctre.phoenix.motion.TrajectoryPoint
 import com.ctre.phoenix.motorcontrol.*
+import edu.wpi.first.wpilibj.Notifier
 import edu.wpi.first.wpilibj.Spark
 import org.team2471.frc.lib.math.DoubleRange
+import org.team2471.frc.lib.motion.following.ArcadeTrajectory
+import org.team2471.frc.lib.motion_profiling.MotionCurve
 import org.team2471.frc.lib.units.Angle
+import kotlin.math.ceil
+import kotlin.math.max
+import kotlin.math.min
 import kotlin.math.roundToInt
 import com.ctre.phoenix.motorcontrol.can.TalonSRX as CTRETalonSRX
 import com.ctre.phoenix.motorcontrol.can.VictorSPX as CTREVictorSPX
@@ -324,6 +333,210 @@ class MotorController(deviceId: MotorControllerID, vararg followerIds: MotorCont
      */
     fun coastMode() = allMotorControllers { it.setNeutralMode(NeutralMode.Coast) }
 
+    /**
+     * Prepares to stream a profile baked at a fixed [step] into the controller's onboard motion profile buffer, such
+     * as one side of an [ArcadeTrajectory]. Positions are in units specified by [ConfigScope.feedbackCoefficient],
+     * velocities in those units per second, and [feedForward] is an arbitrary feed forward per point.
+     *
+     * @see MotionProfileStream
+     */
+    fun streamMotionProfile(
+        position: DoubleArray,
+        velocity: DoubleArray,
+        step: Double,
+        feedForward: DoubleArray? = null
+    ): MotionProfileStream {
+        check(motorController !is SparkMaxWrapper) { "Motion profiles can only be streamed to CTRE motor controllers" }
+        return MotionProfileStream(position, velocity, step, feedForward)
+    }
+
+    /**
+     * Prepares to stream a [curve] of position against time, sampled every [step] seconds, into the controller's
+     * onboard motion profile buffer.
+     *
+     * @see MotionProfileStream
+     */
+    fun streamMotionProfile(curve: MotionCurve, step: Double = 0.01): MotionProfileStream {
+        val length = curve.length
+        val size = ceil(length / step - 1e-9).toInt() + 1
+        val position = DoubleArray(size) { curve.getValue(min(it * step, length)) }
+        val velocity = DoubleArray(size) { curve.getDerivative(min(it * step, length)) }
+        return streamMotionProfile(position, velocity, step)
+    }
+
+    /**
+     * A baked profile fed into the controller's motion profile buffer by a background [Notifier], ahead of the
+     * controller consuming it, so the controller runs a point every [step] on its own whatever the robot loop and CAN
+     * bus are doing.
+     *
+     * Each feed pushes points into the top level buffer while it has room and moves them to the controller, twice per
+     * point. A [start]ed profile is enabled once enough points are on the controller, and holds its last point when it
+     * finishes. Profiles which must run together, like the two sides of an [ArcadeTrajectory], are [arm]ed instead
+     * and enabled together once both are [ready][isReady], as [streamAlongPath] does for an arcade drive.
+     *
+     * Feeding, starting and stopping are serialized, so a feed already running on the notifier when the profile is
+     * stopped does nothing afterwards.
+     */
+    inner class MotionProfileStream internal constructor(
+        private val position: DoubleArray,
+        private val velocity: DoubleArray,
+        val step: Double,
+        private val feedForward: DoubleArray?
+    ) {
+        /**
+         * The number of points in the profile.
+         */
+        val size = position.size
+
+        private val durationMs = (step * 1000.0).roundToInt()
+        private val point = TrajectoryPoint()
+        private val status = MotionProfileStatus()
+        private val notifier = Notifier { feed() }
+        private val lock = Any()
+        private var next = 0
+        private var minBufferedPoints = 0
+        private var isAutoEnabled = false
+        private var isEnabled = false
+        private var isStopped = true
+
+        /**
+         * Whether enough points are on the controller to [enable] the profile.
+         */
+        @Volatile
+        var isReady = false
+            private set
+
+        /**
+         * Whether the controller has run the last point and is holding it.
+         */
+        @Volatile
+        var isFinished = false
+            private set
+
+        /**
+         * Whether the controller has run out of points while running the profile since it started, meaning it was
+         * not fed fast enough.
+         */
+        @Volatile
+        var hasUnderrun = false
+            private set
+
+        init {
+            require(size > 0) { "The profile has no points" }
+            require(velocity.size == size && (feedForward == null || feedForward.size == size)) {
+                "The profile's tables must all have $size points"
+            }
+            require(durationMs in 1..127 && Math.abs(durationMs / 1000.0 - step) < 1e-9) {
+                "The step must be a whole number of milliseconds up to 127, got $step"
+            }
+        }
+
+        /**
+         * Clears the controller's buffers and starts feeding the profile, enabling it once [minBufferedPoints] points
+         * are on the controller.
+         */
+        fun start(minBufferedPoints: Int = 5) = begin(minBufferedPoints, true)
+
+        /**
+         * Clears the controller's buffers and starts feeding the profile without enabling it. It is [isReady] once
+         * [minBufferedPoints] points are on the controller.
+         */
+        fun arm(minBufferedPoints: Int = 5) = begin(minBufferedPoints, false)
+
+        /**
+         * Enables an [arm]ed profile, which the controller then runs from its first point.
+         *
+         * @throws IllegalStateException if the profile isn't [ready][isReady]
+         */
+        fun enable() = synchronized(lock) {
+            check(!isStopped && isReady) { "The motion profile must be armed and ready before it is enabled" }
+            if (!isEnabled) {
+                motorController.set(ControlMode.MotionProfile, SetValueMotionProfile.Enable.value.toDouble())
+                isEnabled = true
+            }
+        }
+
+        private fun begin(minBufferedPoints: Int, isAutoEnabled: Boolean) = synchronized(lock) {
+            notifier.stop()
+            this.minBufferedPoints = minBufferedPoints
+            this.isAutoEnabled = isAutoEnabled
+            next = 0
+            isEnabled = false
+            isStopped = false
+            isReady = false
+            isFinished = false
+            hasUnderrun = false
+
+            motorController.set(ControlMode.MotionProfile, SetValueMotionProfile.Disable.value.toDouble())
+            motorController.clearMotionProfileTrajectories()
+            motorController.clearMotionProfileHasUnderrun(0)
+            motorController.configMotionProfileTrajectoryPeriod(0, 0)
+            motorController.changeMotionControlFramePeriod(max(durationMs / 2, 1))
+
+            feed()
+            notifier.startPeriodic(step / 2.0)
+        }
+
+        /**
+         * Stops feeding, clears the controller's buffers and neutralizes the output.
+         */
+        fun stop() = synchronized(lock) {
+            isStopped = true
+            isEnabled = false
+            isReady = false
+            notifier.stop()
+            motorController.clearMotionProfileTrajectories()
+            motorController.neutralOutput()
+        }
+
+        /**
+         * Stops the profile and releases the notifier.
+         */
+        fun close() {
+            stop()
+            notifier.close()
+        }
+
+        private fun feed() {
+            synchronized(lock) {
+                // the notifier may still run a feed which was waiting on the lock when the profile was stopped
+                if (isStopped) return
+
+                while (next < size && !motorController.isMotionProfileTopLevelBufferFull) {
+                    push(next++)
+                }
+                motorController.processMotionProfileBuffer()
+                motorController.getMotionProfileStatus(status)
+                if (status.hasUnderrun) hasUnderrun = true
+
+                if (!isEnabled) {
+                    val isBuffered = status.btmBufferCnt >= minBufferedPoints ||
+                            next == size && status.topBufferCnt == 0
+                    if (isBuffered) isReady = true
+                    if (isReady && isAutoEnabled) {
+                        motorController.set(ControlMode.MotionProfile, SetValueMotionProfile.Enable.value.toDouble())
+                        isEnabled = true
+                    }
+                } else if (status.activePointValid && status.isLast) {
+                    motorController.set(ControlMode.MotionProfile, SetValueMotionProfile.Hold.value.toDouble())
+                    isFinished = true
+                    notifier.stop()
+                }
+            }
+        }
+
+        private fun push(index: Int) {
+            point.position = position[index] / feedbackCoefficient - rawOffset
+            point.velocity = velocity[index] / feedbackCoefficient / 10.0
+            point.arbFeedFwd = if (feedForward != null) feedForward[index] else 0.0
+            point.profileSlotSelect0 = pidSlot
+            point.zeroPos = false
+            point.isLastPoint = index == size - 1
+            point.timeDur = durationMs
+            motorController.pushMotionProfileTrajectory(point)
+        }
+    }
+
     inner class ConfigScope(private val timeoutMs: Int) {
         /**
          * The primary, "master" [internalMotorController].
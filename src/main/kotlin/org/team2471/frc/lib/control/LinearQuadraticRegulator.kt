@@ -0,0 +1,171 @@
+package org.team2471.frc.lib.control
+
+/**
+ * A discrete-time linear-quadratic regulator for small systems, solved by stepping the Riccati equation backwards.
+ *
+ * The system is x[k+1] = [a] x[k] + [b] u[k], and the controller u = -[gain] x minimizes the sum of xᵀ[q]x + uᵀ[r]u.
+ * Matrices are row-major arrays, filled in by the caller. Each [step] works in preallocated arrays, so a time-varying
+ * gain schedule can be solved by changing [a] and [b] between steps without allocating.
+ *
+ * @param states the size of x
+ * @param inputs the size of u
+ */
+class LinearQuadraticRegulator(val states: Int, val inputs: Int) {
+    val a = DoubleArray(states * states)
+    val b = DoubleArray(states * inputs)
+    val q = DoubleArray(states * states)
+    val r = DoubleArray(inputs * inputs)
+
+    /**
+     * The cost-to-go matrix P of the last [step], or [q] after a [reset].
+     */
+    val costToGo = DoubleArray(states * states)
+
+    /**
+     * The gain K of the last [step], as an inputs by states matrix.
+     */
+    val gain = DoubleArray(inputs * states)
+
+    private val pa = DoubleArray(states * states)
+    private val pb = DoubleArray(states * inputs)
+    private val s = DoubleArray(inputs * inputs)
+    private val btpa = DoubleArray(inputs * states)
+    private val inverse = DoubleArray(inputs * inputs)
+    private val closedLoop = DoubleArray(states * states)
+
+    /**
+     * Sets the diagonal of the square [matrix] to [values] and everything else to zero.
+     */
+    fun setDiagonal(matrix: DoubleArray, vararg values: Double) {
+        val size = values.size
+        require(matrix.size == size * size) { "Expected ${matrix.size} values, got $size" }
+        matrix.fill(0.0)
+        for (i in 0 until size) {
+            matrix[i * size + i] = values[i]
+        }
+    }
+
+    /**
+     * Starts a new backward pass from the final cost, which is [q].
+     */
+    fun reset() {
+        q.copyInto(costToGo)
+    }
+
+    /**
+     * Steps the Riccati equation one sample backwards, updating [gain] and [costToGo].
+     */
+    fun step() {
+        val n = states
+        val m = inputs
+
+        multiply(costToGo, a, pa, n, n, n)
+        multiply(costToGo, b, pb, n, n, m)
+
+        // S = R + BᵀPB, BᵀPA
+        for (i in 0 until m) {
+            for (j in 0 until m) {
+                var sum = r[i * m + j]
+                for (k in 0 until n) sum += b[k * m + i] * pb[k * m + j]
+                s[i * m + j] = sum
+            }
+            for (j in 0 until n) {
+                var sum = 0.0
+                for (k in 0 until n) sum += b[k * m + i] * pa[k * n + j]
+                btpa[i * n + j] = sum
+            }
+        }
+
+        // K = S⁻¹BᵀPA
+        invert(s, inverse, m)
+        multiply(inverse, btpa, gain, m, m, n)
+
+        // P = Q + Aᵀ(PA - PBK)
+        for (i in 0 until n) {
+            for (j in 0 until n) {
+                var sum = pa[i * n + j]
+                for (k in 0 until m) sum -= pb[i * m + k] * gain[k * n + j]
+                closedLoop[i * n + j] = sum
+            }
+        }
+        for (i in 0 until n) {
+            for (j in 0 until n) {
+                var sum = q[i * n + j]
+                for (k in 0 until n) sum += a[k * n + i] * closedLoop[k * n + j]
+                costToGo[i * n + j] = sum
+            }
+        }
+
+        // keep P symmetric against rounding
+        for (i in 0 until n) {
+            for (j in i + 1 until n) {
+                val average = (costToGo[i * n + j] + costToGo[j * n + i]) / 2.0
+                costToGo[i * n + j] = average
+                costToGo[j * n + i] = average
+            }
+        }
+    }
+
+    /**
+     * Solves the finite-horizon problem over [steps] samples for a time-invariant system, leaving the first sample's
+     * gain in [gain].
+     */
+    fun solve(steps: Int) {
+        reset()
+        repeat(steps) { step() }
+    }
+
+    private companion object {
+        // out = left (rows x shared) * right (shared x columns)
+        fun multiply(left: DoubleArray, right: DoubleArray, out: DoubleArray, rows: Int, shared: Int, columns: Int) {
+            for (i in 0 until rows) {
+                for (j in 0 until columns) {
+                    var sum = 0.0
+                    for (k in 0 until shared) sum += left[i * shared + k] * right[k * columns + j]
+                    out[i * columns + j] = sum
+                }
+            }
+        }
+
+        // Gauss-Jordan elimination with partial pivoting, destroying [matrix]
+        fun invert(matrix: DoubleArray, out: DoubleArray, size: Int) {
+            out.fill(0.0)
+            for (i in 0 until size) out[i * size + i] = 1.0
+
+            for (column in 0 until size) {
+                var pivot = column
+                for (row in column + 1 until size) {
+                    if (Math.abs(matrix[row * size + column]) > Math.abs(matrix[pivot * size + column])) pivot = row
+                }
+                check(matrix[pivot * size + column] != 0.0) { "The input cost matrix is singular" }
+                if (pivot != column) {
+                    for (k in 0 until size) {
+                        swap(matrix, pivot * size + k, column * size + k)
+                        swap(out, pivot * size + k, column * size + k)
+                    }
+                }
+
+                val scale = 1.0 / matrix[column * size + column]
+                for (k in 0 until size) {
+                    matrix[column * size + k] *= scale
+                    out[column * size + k] *= scale
+                }
+                for (row in 0 until size) {
+                    if (row == column) continue
+                    val factor = matrix[row * size + column]
+                    if (factor == 0.0) continue
+                    for (k in 0 until size) {
+                        matrix[row * size + k] -= factor * matrix[column * size + k]
+                        out[row * size + k] -= factor * out[column * size + k]
+                    }
+                }
+            }
+        }
+
+        fun swap(values: DoubleArray, i: Int, j: Int) {
+            val temp = values[i]
+            values[i] = values[j]
+            values[j] = temp
+        }
+    }
+}
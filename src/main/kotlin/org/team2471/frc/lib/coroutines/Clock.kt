@@ -0,0 +1,171 @@
+package org.team2471.frc.lib.coroutines
+
+import edu.wpi.first.wpilibj.Timer
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.yield
+import java.util.ArrayDeque
+import java.util.PriorityQueue
+import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.resume
+
+/**
+ * A source of time and a way to wait on it, so that code can run against simulated time as well as the robot's clock.
+ *
+ * A clock is a coroutine context element. [periodic], [delay], [suspendUntil] and the path followers use the clock
+ * of the coroutine they run in, or the [FpgaClock] if it has none.
+ */
+interface Clock : CoroutineContext.Element {
+    /**
+     * The current time in seconds.
+     */
+    val time: Double
+
+    /**
+     * Suspends the coroutine for [seconds] of this clock's time.
+     */
+    suspend fun delay(seconds: Double)
+
+    override val key: CoroutineContext.Key<*>
+        get() = Key
+
+    companion object Key : CoroutineContext.Key<Clock>
+}
+
+/**
+ * The clock of this context, or the [FpgaClock] if it has none.
+ */
+val CoroutineContext.clock: Clock
+    get() = this[Clock] ?: FpgaClock
+
+/**
+ * The roboRIO's FPGA clock, waiting in real time.
+ */
+object FpgaClock : Clock {
+    override val time: Double
+        get() = Timer.getFPGATimestamp()
+
+    override suspend fun delay(seconds: Double) = kotlinx.coroutines.delay((seconds * 1000).toLong())
+}
+
+/**
+ * A clock which only moves when told to, so simulations run as fast as they can compute and give the same result
+ * every time.
+ *
+ * Coroutines started with [run] execute one at a time on the calling thread, and whenever all of them are waiting the
+ * clock jumps straight to the earliest [delay] due. Code which isn't a coroutine, like a physics step, can instead
+ * move the clock with [advance].
+ */
+class VirtualClock(startTime: Double = 0.0) : Clock {
+    @Volatile
+    override var time = startTime
+        private set
+
+    private val lock = Any()
+    private val ready = ArrayDeque<Runnable>()
+    private val scheduled = PriorityQueue<Scheduled>()
+    private var nextSequence = 0L
+
+    private class Scheduled(
+        val time: Double,
+        val sequence: Long,
+        val continuation: CancellableContinuation<Unit>
+    ) : Comparable<Scheduled> {
+        // delays due at the same time resume in the order they were made
+        override fun compareTo(other: Scheduled) =
+            if (time != other.time) time.compareTo(other.time) else sequence.compareTo(other.sequence)
+    }
+
+    /**
+     * Runs coroutines in the order they become ready, on whichever thread is running [run] or [advance].
+     */
+    val dispatcher: CoroutineDispatcher = object : CoroutineDispatcher() {
+        override fun dispatch(context: CoroutineContext, block: Runnable) {
+            synchronized(lock) { ready.addLast(block) }
+        }
+    }
+
+    override suspend fun delay(seconds: Double) {
+        if (seconds <= 0.0) return yield()
+
+        suspendCancellableCoroutine<Unit> { continuation ->
+            val entry = synchronized(lock) {
+                Scheduled(time + seconds, nextSequence++, continuation).also { scheduled.add(it) }
+            }
+            continuation.invokeOnCancellation {
+                synchronized(lock) { scheduled.remove(entry) }
+            }
+        }
+    }
+
+    /**
+     * Runs [block] with this clock on its [dispatcher], jumping time forward whenever every coroutine is waiting,
+     * and returns its result once it and its children finish.
+     *
+     * @throws IllegalStateException if the coroutines are waiting on something other than this clock, which would
+     * never finish
+     */
+    fun <T> run(block: suspend CoroutineScope.() -> T): T {
+        var isComplete = false
+        var value: T? = null
+        var failure: Throwable? = null
+        CoroutineScope(dispatcher + this).launch {
+            try {
+                value = coroutineScope(block)
+            } catch (exception: Throwable) {
+                failure = exception
+            } finally {
+                isComplete = true
+            }
+        }
+
+        while (!isComplete) {
+            if (runReady()) continue
+            val next = synchronized(lock) { scheduled.poll() }
+                ?: throw IllegalStateException("Coroutines are waiting on something other than the virtual clock")
+            resume(next)
+        }
+
+        failure?.let { throw it }
+        @Suppress("UNCHECKED_CAST")
+        return value as T
+    }
+
+    /**
+     * Moves the clock forward by [seconds], running every coroutine that becomes due on the way. Must not be called
+     * from a coroutine running on this clock.
+     */
+    fun advance(seconds: Double) {
+        require(seconds >= 0.0) { "A clock cannot go backwards, got $seconds seconds" }
+
+        val target = time + seconds
+        while (true) {
+            runReady()
+            val next = synchronized(lock) {
+                val head = scheduled.peek()
+                if (head != null && head.time <= target) scheduled.poll() else null
+            } ?: break
+            resume(next)
+        }
+        time = target
+    }
+
+    private fun resume(scheduled: Scheduled) {
+        if (scheduled.time > time) time = scheduled.time
+        scheduled.continuation.resume(Unit)
+    }
+
+    // runs everything ready, including anything those make ready, returning whether anything ran
+    private fun runReady(): Boolean {
+        var ran = false
+        while (true) {
+            val task = synchronized(lock) { ready.pollFirst() } ?: return ran
+            task.run()
+            ran = true
+        }
+    }
+}
@@ -4,12 +4,11 @@ import edu.wpi.first.wpilibj.DriverStation
 import edu.wpi.first.wpilibj.Watchdog
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.CoroutineStart
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlinx.coroutines.yield
 import org.team2471.frc.lib.units.Time
-import org.team2471.frc.lib.util.measureTimeFPGA
+import kotlin.coroutines.coroutineContext
 
 class PeriodicScope @PublishedApi internal constructor(val period: Double) {
     @PublishedApi
@@ -41,6 +40,8 @@ fun CoroutineScope.meanlibLaunch(
  *
  * If the [body] takes longer than the [period] to complete, a warning is printed. This can
  * be disabled by setting the [watchOverrun] parameter to false.
+ *
+ * The [period] is measured on the coroutine's [Clock].
  */
 suspend inline fun periodic(
     period: Double = 0.02,
@@ -55,17 +56,18 @@ suspend inline fun periodic(
         null
     }
 
+    val clock = coroutineContext.clock
     while (true) {
         watchdog?.reset()
-        val dt = measureTimeFPGA {
-            body(scope)
-        }
+        val start = clock.time
+        body(scope)
+        val dt = clock.time - start
         if (scope.isDone) break
         val remainder = period - dt
         if (remainder <= 0.0) {
             yield()
         } else {
-            delay(remainder)
+            clock.delay(remainder)
         }
     }
 //    var cont: CancellableContinuation<Unit>? = null
@@ -93,7 +95,7 @@ suspend inline fun periodic(
  * @param pollingRate The time between each check, in milliseconds
  */
 suspend inline fun suspendUntil(pollingRate: Int = 20, condition: () -> Boolean) {
-    while (!condition()) delay(pollingRate.toLong())
+    while (!condition()) coroutineContext.clock.delay(pollingRate / 1000.0)
 }
 
 /**
@@ -110,11 +112,11 @@ suspend inline fun CoroutineScope.parallel(vararg blocks: suspend () -> Unit) {
 }
 
 /**
- * Suspends the coroutine for [time] seconds.
+ * Suspends the coroutine for [time] seconds of its [Clock].
  *
  * @see kotlinx.coroutines.delay
  */
-suspend inline fun delay(time: Double) = delay((time * 1000).toLong())
+suspend inline fun delay(time: Double) = coroutineContext.clock.delay(time)
 
 suspend inline fun delay(time: Time) = delay(time.asSeconds)
 
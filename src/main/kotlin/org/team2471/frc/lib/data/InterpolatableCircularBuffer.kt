@@ -2,19 +2,26 @@ package org.team2471.frc.lib.data
 
 import edu.wpi.first.wpiutil.CircularBuffer
 import org.team2471.frc.lib.math.lerp
-import java.lang.Math.ceil
 import java.lang.Math.floor
 
+/**
+ * @see TimeInterpolatableCircularBuffer to interpolate by time instead of by index
+ */
 class InterpolatableCircularBuffer(size: Int) : CircularBuffer(size) {
     /**
-     * Get the linear interpolation of elements between provided index relative to the start of the buffer.
+     * Get the linear interpolation of elements between provided index relative to the start of the buffer. Indices
+     * outside of the buffer return the nearest element.
      *
      * @return Linear interpolation of elements between index starting from front of buffer.
      */
-    fun interpolate(index: Double) = lerp(
-            this[floor(index).toInt()], // min
-            this[ceil(index).toInt()], // max
-            index % 1) // k
+    fun interpolate(index: Double): Double {
+        val last = size() - 1
+        val clamped = index.coerceIn(0.0, last.toDouble().coerceAtLeast(0.0))
+        val lower = floor(clamped)
+        val k = clamped - lower
+        val min = this[lower.toInt()]
+        return if (k == 0.0) min else lerp(min, this[Math.min(lower.toInt() + 1, last)], k)
+    }
 
     /**
      * Get the element at the provided index relative to the start of the buffer.
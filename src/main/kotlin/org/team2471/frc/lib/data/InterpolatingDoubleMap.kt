@@ -0,0 +1,142 @@
+package org.team2471.frc.lib.data
+
+import kotlin.math.sqrt
+
+/**
+ * A sorted lookup table from double keys to double values, interpolating between entries.
+ *
+ * Unlike [com.team254.lib.util.InterpolatingTreeMap] the keys and values are stored in primitive arrays, so lookups
+ * neither box nor allocate. Lookups binary search the keys, or index directly when the keys are uniformly spaced.
+ * Keys outside of the table return the value of the nearest end.
+ *
+ * @param interpolation how to interpolate between entries
+ */
+class InterpolatingDoubleMap(
+    keys: DoubleArray,
+    values: DoubleArray,
+    val interpolation: Interpolation = Interpolation.LINEAR
+) {
+    enum class Interpolation {
+        LINEAR,
+
+        /**
+         * Monotone cubic Hermite interpolation. The curve is smooth through every entry and never overshoots
+         * between two entries, which keeps tables such as shooter speeds from bulging between measurements.
+         */
+        CUBIC
+    }
+
+    private var keys = DoubleArray(0)
+    private var values = DoubleArray(0)
+    private var tangents = DoubleArray(0)
+
+    // set when keys are evenly spaced, so lookups can compute the index directly
+    private var uniformStep = 0.0
+
+    val size get() = keys.size
+
+    init {
+        load(keys, values)
+    }
+
+    /**
+     * Replaces the contents of the table. The keys do not need to be sorted, but must be unique.
+     */
+    fun load(keys: DoubleArray, values: DoubleArray) {
+        require(keys.size == values.size) { "Expected ${keys.size} values, got ${values.size}" }
+        require(keys.isNotEmpty()) { "An interpolating map needs at least one entry" }
+
+        val order = keys.indices.sortedBy { keys[it] }
+        val sortedKeys = DoubleArray(keys.size) { keys[order[it]] }
+        val sortedValues = DoubleArray(keys.size) { values[order[it]] }
+        for (i in 1 until sortedKeys.size) {
+            require(sortedKeys[i] != sortedKeys[i - 1]) { "Duplicate key ${sortedKeys[i]}" }
+        }
+
+        this.keys = sortedKeys
+        this.values = sortedValues
+        uniformStep = uniformStep(sortedKeys)
+        tangents = if (interpolation == Interpolation.CUBIC) monotoneTangents(sortedKeys, sortedValues) else DoubleArray(0)
+    }
+
+    operator fun get(key: Double): Double {
+        val last = keys.size - 1
+        if (key <= keys[0]) return values[0]
+        if (key >= keys[last]) return values[last]
+
+        val i = indexBefore(key)
+        val h = keys[i + 1] - keys[i]
+        val t = (key - keys[i]) / h
+
+        return when (interpolation) {
+            Interpolation.LINEAR -> values[i] + (values[i + 1] - values[i]) * t
+            Interpolation.CUBIC -> {
+                val t2 = t * t
+                val t3 = t2 * t
+                (2 * t3 - 3 * t2 + 1) * values[i] +
+                        (t3 - 2 * t2 + t) * h * tangents[i] +
+                        (-2 * t3 + 3 * t2) * values[i + 1] +
+                        (t3 - t2) * h * tangents[i + 1]
+            }
+        }
+    }
+
+    // the index of the last key <= [key], for keys strictly inside the table
+    private fun indexBefore(key: Double): Int {
+        if (uniformStep > 0.0) {
+            val i = ((key - keys[0]) / uniformStep).toInt()
+            return i.coerceIn(0, keys.size - 2)
+        }
+
+        var low = 0
+        var high = keys.size - 1
+        while (high - low > 1) {
+            val mid = (low + high) ushr 1
+            if (keys[mid] <= key) low = mid else high = mid
+        }
+        return low
+    }
+
+    private companion object {
+        fun uniformStep(keys: DoubleArray): Double {
+            if (keys.size < 2) return 0.0
+            val step = (keys[keys.size - 1] - keys[0]) / (keys.size - 1)
+            val tolerance = step * 1.0e-9
+            for (i in keys.indices) {
+                if (Math.abs(keys[i] - (keys[0] + step * i)) > tolerance) return 0.0
+            }
+            return step
+        }
+
+        // Fritsch-Carlson tangents
+        fun monotoneTangents(keys: DoubleArray, values: DoubleArray): DoubleArray {
+            val n = keys.size
+            val tangents = DoubleArray(n)
+            if (n < 2) return tangents
+
+            val secants = DoubleArray(n - 1) { (values[it + 1] - values[it]) / (keys[it + 1] - keys[it]) }
+            tangents[0] = secants[0]
+            tangents[n - 1] = secants[n - 2]
+            for (i in 1 until n - 1) {
+                tangents[i] = if (secants[i - 1] * secants[i] <= 0.0) 0.0 else (secants[i - 1] + secants[i]) / 2.0
+            }
+
+            for (i in 0 until n - 1) {
+                if (secants[i] == 0.0) {
+                    tangents[i] = 0.0
+                    tangents[i + 1] = 0.0
+                    continue
+                }
+                val a = tangents[i] / secants[i]
+                val b = tangents[i + 1] / secants[i]
+                val length = a * a + b * b
+                if (length > 9.0) {
+                    val scale = 3.0 / sqrt(length)
+                    tangents[i] = scale * a * secants[i]
+                    tangents[i + 1] = scale * b * secants[i]
+                }
+            }
+            return tangents
+        }
+    }
+}
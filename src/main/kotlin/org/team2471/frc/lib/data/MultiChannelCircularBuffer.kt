@@ -0,0 +1,199 @@
+package org.team2471.frc.lib.data
+
+/**
+ * A circular buffer of samples that share one timestamp, such as the positions, velocities and currents of a
+ * drivetrain recorded on each loop.
+ *
+ * Each channel is stored in its own primitive array alongside a single array of timestamps, so adding and
+ * interpolating samples allocate nothing. Indices are relative to the oldest sample in the buffer. Timestamps must
+ * be added in increasing order; once [capacity] is reached the oldest sample is overwritten.
+ *
+ * @param capacity the number of samples kept
+ * @param channels the number of values in each sample
+ */
+class MultiChannelCircularBuffer(val capacity: Int, val channels: Int) {
+    private val timestamps = DoubleArray(capacity)
+    private val data = Array(channels) { DoubleArray(capacity) }
+
+    private var head = 0 // physical index of the oldest sample
+
+    // index of the last time lookup, so lookups at advancing times only step forward
+    private var cursor = 0
+
+    /**
+     * The number of samples currently stored.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Adds a sample, overwriting the oldest if the buffer is full.
+     *
+     * @param values one value per channel
+     */
+    fun add(timestamp: Double, values: DoubleArray) {
+        require(values.size == channels) { "Expected $channels values, got ${values.size}" }
+
+        val index = nextSlot()
+        timestamps[index] = timestamp
+        for (channel in 0 until channels) {
+            data[channel][index] = values[channel]
+        }
+    }
+
+    fun clear() {
+        head = 0
+        size = 0
+        cursor = 0
+    }
+
+    /**
+     * Get the timestamp of the sample at the provided index relative to the oldest sample.
+     *
+     * @throws IndexOutOfBoundsException if [index] is not below [size]
+     */
+    fun getTimestamp(index: Int): Double {
+        checkIndex(index)
+        return timestampAt(index)
+    }
+
+    /**
+     * Get one channel of the sample at the provided index relative to the oldest sample.
+     *
+     * @throws IndexOutOfBoundsException if [index] is not below [size]
+     */
+    operator fun get(index: Int, channel: Int): Double {
+        checkIndex(index)
+        return data[channel][physical(index)]
+    }
+
+    /**
+     * Linearly interpolates every channel at a fractional [index] relative to the oldest sample into [out]. Indices
+     * outside of the buffer return the nearest sample.
+     */
+    fun interpolate(index: Double, out: DoubleArray) {
+        check(size > 0) { "Cannot interpolate an empty buffer" }
+        val lower = index.toInt().coerceIn(0, size - 1)
+        val upper = (lower + 1).coerceAtMost(size - 1)
+        interpolate(lower, upper, (index - lower).coerceIn(0.0, 1.0), out)
+    }
+
+    /**
+     * Linearly interpolates every channel at [time] into [out]. Times outside of the buffer return the nearest sample.
+     *
+     * Lookups at times that advance from one call to the next, as from a periodic loop, step forward from the
+     * previous lookup and take amortized constant time; other lookups binary search the timestamps.
+     *
+     * @return false if the buffer is empty, in which case [out] is unchanged
+     */
+    fun interpolateAt(time: Double, out: DoubleArray): Boolean {
+        if (size == 0) return false
+
+        val lower = indexBefore(time)
+        val upper = (lower + 1).coerceAtMost(size - 1)
+        interpolate(lower, upper, fraction(lower, upper, time), out)
+        return true
+    }
+
+    /**
+     * Linearly interpolates one [channel] at [time]. Times outside of the buffer return the nearest sample.
+     */
+    fun interpolateAt(time: Double, channel: Int): Double {
+        check(size > 0) { "Cannot interpolate an empty buffer" }
+
+        val lower = indexBefore(time)
+        val upper = (lower + 1).coerceAtMost(size - 1)
+        val values = data[channel]
+        val lowerValue = values[physical(lower)]
+        return lowerValue + (values[physical(upper)] - lowerValue) * fraction(lower, upper, time)
+    }
+
+    /**
+     * Copies the buffer, oldest sample first, into newly allocated arrays.
+     *
+     * @return the timestamps followed by one array per channel
+     */
+    fun snapshot(): Array<DoubleArray> {
+        val result = Array(channels + 1) { DoubleArray(size) }
+        copyInto(result[0], timestamps)
+        for (channel in 0 until channels) {
+            copyInto(result[channel + 1], data[channel])
+        }
+        return result
+    }
+
+    private fun interpolate(lower: Int, upper: Int, k: Double, out: DoubleArray) {
+        val lowerIndex = physical(lower)
+        val upperIndex = physical(upper)
+        for (channel in 0 until channels) {
+            val values = data[channel]
+            out[channel] = values[lowerIndex] + (values[upperIndex] - values[lowerIndex]) * k
+        }
+    }
+
+    private fun fraction(lower: Int, upper: Int, time: Double): Double {
+        val lowerTime = timestampAt(lower)
+        val span = timestampAt(upper) - lowerTime
+        return if (span <= 0.0) 0.0 else ((time - lowerTime) / span).coerceIn(0.0, 1.0)
+    }
+
+    // the largest index with a timestamp <= [time], or 0 if every sample is newer
+    private fun indexBefore(time: Double): Int {
+        var index = cursor.coerceAtMost(size - 1)
+        if (timestampAt(index) <= time) {
+            var steps = 0
+            while (index + 1 < size && timestampAt(index + 1) <= time && steps < MAX_CURSOR_STEPS) {
+                index++
+                steps++
+            }
+            if (index + 1 >= size || timestampAt(index + 1) > time) {
+                cursor = index
+                return index
+            }
+        }
+
+        cursor = search(time)
+        return cursor
+    }
+
+    private fun search(time: Double): Int {
+        var low = 0
+        var high = size - 1
+        while (low < high) {
+            val mid = (low + high + 1) ushr 1
+            if (timestampAt(mid) <= time) low = mid else high = mid - 1
+        }
+        return low
+    }
+
+    private fun nextSlot(): Int = if (size == capacity) {
+        val index = head
+        head = (head + 1) % capacity
+        if (cursor > 0) cursor-- // indices shift down as the oldest sample is dropped
+        index
+    } else {
+        physical(size++)
+    }
+
+    private fun copyInto(destination: DoubleArray, source: DoubleArray) {
+        val firstPart = minOf(size, capacity - head)
+        System.arraycopy(source, head, destination, 0, firstPart)
+        System.arraycopy(source, 0, destination, firstPart, size - firstPart)
+    }
+
+    private fun checkIndex(index: Int) {
+        if (index < 0 || index >= size) {
+            throw IndexOutOfBoundsException("Index $index is outside of a buffer of size $size")
+        }
+    }
+
+    // unchecked, for indices already known to be in the buffer
+    private fun timestampAt(index: Int) = timestamps[physical(index)]
+
+    private fun physical(index: Int) = (head + index) % capacity
+
+    private companion object {
+        // past this many steps from the cursor a binary search is cheaper
+        const val MAX_CURSOR_STEPS = 8
+    }
+}
@@ -0,0 +1,48 @@
+package org.team2471.frc.lib.data
+
+/**
+ * A circular buffer of timestamped values which can be interpolated by time, such as a sensor reading that needs
+ * to be looked up at the time an image was captured.
+ *
+ * Lookups at advancing times take amortized constant time, and random lookups take logarithmic time.
+ *
+ * @see MultiChannelCircularBuffer
+ */
+class TimeInterpolatableCircularBuffer(size: Int) {
+    private val buffer = MultiChannelCircularBuffer(size, 1)
+    private val sample = DoubleArray(1)
+
+    val capacity get() = buffer.capacity
+
+    /**
+     * The number of values currently stored.
+     */
+    val size get() = buffer.size
+
+    /**
+     * Adds a value, overwriting the oldest if the buffer is full. Timestamps must be added in increasing order.
+     */
+    fun add(timestamp: Double, value: Double) {
+        sample[0] = value
+        buffer.add(timestamp, sample)
+    }
+
+    fun clear() = buffer.clear()
+
+    /**
+     * Get the linear interpolation of values at the provided time. Times outside of the buffer return the nearest
+     * value.
+     */
+    fun interpolate(time: Double) = buffer.interpolateAt(time, 0)
+
+    /**
+     * Alias for [interpolate]
+     *
+     * @see interpolate
+     */
+    operator fun get(time: Double) = interpolate(time)
+
+    fun getTimestamp(index: Int) = buffer.getTimestamp(index)
+
+    fun getValue(index: Int) = buffer[index, 0]
+}
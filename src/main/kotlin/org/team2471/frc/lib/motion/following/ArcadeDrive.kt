@@ -1,14 +1,19 @@
 package org.team2471.frc.lib.motion.following
 
-import edu.wpi.first.wpilibj.Timer
+import org.team2471.frc.lib.actuators.MotorController
+import org.team2471.frc.lib.coroutines.clock
 import org.team2471.frc.lib.coroutines.periodic
 import org.team2471.frc.lib.framework.Subsystem
 import org.team2471.frc.lib.framework.use
 import org.team2471.frc.lib.math.deadband
 import org.team2471.frc.lib.math.windRelativeAngles
 import org.team2471.frc.lib.motion_profiling.Path2D
+import org.team2471.frc.lib.motion_profiling.PathTrajectory
 import org.team2471.frc.lib.motion_profiling.following.ArcadeParameters
 import org.team2471.frc.lib.units.degrees
+import kotlin.coroutines.coroutineContext
+import kotlin.math.hypot
+import kotlin.math.max
 
 interface ArcadeDrive {
     val heading: Double
@@ -36,50 +41,172 @@ interface ArcadeDrive {
  *
  * @param path the [Path2D] to follow
  * @param extraTime the amount of extra time to wait for minor corrections to the path after its completion
+ * @param maxLead how far along the path the setpoints may get ahead of a blocked or slipping robot, see [PathProgress]
+ * @param travelledDistance the distance the robot has driven along the path since it started, such as the average of
+ * its wheel distances, which is one way to hold the path back with [maxLead]
+ * @param odometry the robot's odometry, the other way to hold the path back with [maxLead], by projecting the robot's
+ * pose onto the path
+ * @param schedule a [LqrGainSchedule.differential] schedule for [path], baked at the default step, to correct the
+ * robot's pose from [odometry] with instead of the heading correction in the parameters. The path is followed at the
+ * schedule's period.
+ * @param timeout how long a robot held back by [maxLead] may run past the end of the path before giving up on it
+ * @param resetOdometry whether to move [odometry] to the start of the path, mirrored or not, before following it.
+ * Otherwise the odometry must already be in the path's frame. Either way the heading comes from the gyro, so the robot
+ * must start facing along the path.
  */
 suspend fun <T> T.driveAlongPath(
         path: Path2D,
-        extraTime: Double = 0.0
+        extraTime: Double = 0.0,
+        maxLead: Double = Double.POSITIVE_INFINITY,
+        travelledDistance: (() -> Double)? = null,
+        odometry: DifferentialOdometry? = null,
+        schedule: LqrGainSchedule? = null,
+        timeout: Double = 2.0,
+        resetOdometry: Boolean = false
+) where T : ArcadeDrive, T : Subsystem {
+    val trajectory = ArcadeTrajectory(path, parameters.trackWidth * parameters.scrubFactor)
+    driveAlongPath(trajectory, extraTime, maxLead, travelledDistance, odometry, schedule, timeout, resetOdometry)
+}
+
+/**
+ * Follows the wheel profiles of a [trajectory] baked ahead of time, using the robot's [ArcadeParameters]. The
+ * trajectory's track width should match the parameters' track width times their scrub factor.
+ *
+ * @param extraTime the amount of extra time to wait for minor corrections to the path after its completion
+ * @param maxLead how far along the path the setpoints may get ahead of a blocked or slipping robot, see [PathProgress]
+ * @param travelledDistance the distance the robot has driven along the path since it started, such as the average of
+ * its wheel distances, which is one way to hold the path back with [maxLead]
+ * @param odometry the robot's odometry, the other way to hold the path back with [maxLead], by projecting the robot's
+ * pose onto the path
+ * @param schedule a [LqrGainSchedule.differential] schedule for the trajectory's path, baked at the same step, to
+ * correct the robot's pose from [odometry] with instead of the heading correction in the parameters. Its speed and
+ * turn rate corrections are added to the wheel velocities, and integrated into the wheel distances. The path is
+ * followed at the schedule's period, which its gains are discretized for.
+ * @param timeout how long a robot held back by [maxLead] may run past the end of the path before giving up on it
+ * @param resetOdometry whether to move [odometry] to the start of the path, mirrored or not, before following it.
+ * Otherwise the odometry must already be in the path's frame. Either way the heading comes from the gyro, so the robot
+ * must start facing along the path.
+ */
+suspend fun <T> T.driveAlongPath(
+        trajectory: ArcadeTrajectory,
+        extraTime: Double = 0.0,
+        maxLead: Double = Double.POSITIVE_INFINITY,
+        travelledDistance: (() -> Double)? = null,
+        odometry: DifferentialOdometry? = null,
+        schedule: LqrGainSchedule? = null,
+        timeout: Double = 2.0,
+        resetOdometry: Boolean = false
 ) where T : ArcadeDrive, T : Subsystem = use(this, name = "Drive Along Path") {
-    println("Driving along path ${path.name}, duration: ${path.durationWithSpeed}, " +
+    val path = trajectory.path
+    require(schedule == null || odometry != null) { "Following path ${path.name} with a gain schedule needs odometry" }
+    require(!resetOdometry || odometry != null) { "Cannot reset odometry for path ${path.name} without odometry" }
+    require(schedule == null || schedule.inputs == 2 && schedule.trajectory.step == trajectory.step &&
+            schedule.trajectory.duration == trajectory.duration) {
+        "The schedule must be a differential schedule for path ${path.name}, baked at the trajectory's step"
+    }
+    require(timeout >= 0.0) { "The timeout cannot be negative, got $timeout" }
+    println("Driving along path ${path.name}, duration: ${trajectory.duration}, " +
             "travel direction: ${path.robotDirection}, mirrored: ${path.isMirrored}")
 
     startFollowing()
 
-    val arcadePath = ArcadePath(path, parameters.trackWidth * parameters.scrubFactor)
+    if (resetOdometry && odometry != null) {
+        val start = path.getPosition(0.0)
+        odometry.reset(start.x, start.y)
+        if (!odometry.isRunning) odometry.update()
+    }
 
-    var prevLeftDistance = 0.0
-    var prevRightDistance = 0.0
+    val progress = if ((travelledDistance != null || odometry != null) && maxLead < Double.POSITIVE_INFINITY) {
+        PathProgress(schedule?.trajectory ?: PathTrajectory(path, trajectory.step), maxLead)
+    } else {
+        null
+    }
+    val setpoint = ArcadeTrajectory.Sample()
+    val pose = PoseHistory.Sample()
+
+    // the gain schedule's state: the path's sample, its direction of travel and the wheel distances corrected so far
+    val pathSetpoint = PathTrajectory.Sample()
+    val pathError = DoubleArray(LqrGainSchedule.STATES)
+    val correction = DoubleArray(2)
+    val direction = if (path.robotDirection == Path2D.RobotDirection.FORWARD) 1.0 else -1.0
+    var tangentX = 0.0
+    var tangentY = 1.0
+    var leftCorrection = 0.0
+    var rightCorrection = 0.0
     var prevTime = 0.0
 
-    val timer = Timer().apply { start() }
+    val clock = coroutineContext.clock
+    val startTime = clock.time
 
     var angleErrorAccum = 0.0
     try {
-        periodic {
-            val t = timer.get()
-            val dt = t - prevTime
+        periodic(schedule?.period ?: 0.02) {
+            val time = clock.time - startTime
+            // poses recorded before a reset are in another frame
+            val hasPose = odometry != null && (progress != null || schedule != null) && !odometry.isResetPending &&
+                    odometry.latestPose(pose)
+            val t = if (progress != null && hasPose) {
+                progress.update(time, pose.x, pose.y)
+            } else if (progress != null && travelledDistance != null) {
+                progress.update(time, travelledDistance())
+            } else {
+                time
+            }
+            trajectory.sample(t, setpoint)
 
             // apply gyro corrections to the distances
             val gyroAngle = heading
-            val pathAngle = Math.toDegrees(path.getTangent(t).angle)
+            val pathAngle = setpoint.tangentAngle
             val angleError = pathAngle - windRelativeAngles(pathAngle, gyroAngle)
 
-            angleErrorAccum = angleErrorAccum * parameters.headingCorrectionIDecay + angleError
-
-            val gyroCorrection = if (parameters.doHeadingCorrection) {
-                angleError * parameters.headingCorrectionP + angleErrorAccum * parameters.headingCorrectionI
+            var gyroCorrection = 0.0
+            var leftCorrectionVelocity = 0.0
+            var rightCorrectionVelocity = 0.0
+            if (schedule != null) {
+                if (hasPose) {
+                    schedule.trajectory.sample(t, pathSetpoint)
+                    val speed = hypot(pathSetpoint.velocityX, pathSetpoint.velocityY)
+                    if (speed > 1e-6) {
+                        tangentX = pathSetpoint.velocityX / speed
+                        tangentY = pathSetpoint.velocityY / speed
+                    }
+
+                    // actual minus path, along and to the right of the direction of travel
+                    val positionErrorX = pathSetpoint.x - pose.x
+                    val positionErrorY = pathSetpoint.y - pose.y
+                    pathError[0] = -(positionErrorX * tangentX + positionErrorY * tangentY)
+                    pathError[1] = -(positionErrorX * tangentY - positionErrorY * tangentX)
+                    pathError[2] = -angleError
+                    schedule.correction(t, pathError, correction)
+
+                    // a clockwise turn speeds up the left side
+                    val speedCorrection = correction[0] * direction
+                    val turnCorrection = Math.toRadians(correction[1]) * trajectory.trackWidth / 2.0
+                    leftCorrectionVelocity = speedCorrection + turnCorrection
+                    rightCorrectionVelocity = speedCorrection - turnCorrection
+                }
+                val dt = max(time - prevTime, 0.0)
+                leftCorrection += leftCorrectionVelocity * dt
+                rightCorrection += rightCorrectionVelocity * dt
             } else {
-                0.0
+                angleErrorAccum = angleErrorAccum * parameters.headingCorrectionIDecay + angleError
+
+                if (parameters.doHeadingCorrection) {
+                    gyroCorrection = angleError * parameters.headingCorrectionP +
+                            angleErrorAccum * parameters.headingCorrectionI
+                }
             }
+            prevTime = time
 
-            // update left/right path positions
+            // look up left/right path positions and velocities
 
-            val leftDistance = arcadePath.getLeftDistance(t) + gyroCorrection
-            val rightDistance = arcadePath.getRightDistance(t) - gyroCorrection
+            val leftDistance = setpoint.leftPosition + gyroCorrection + leftCorrection
+            val rightDistance = setpoint.rightPosition - gyroCorrection + rightCorrection
 
-            val leftVelocity = (leftDistance - prevLeftDistance) / dt
-            val rightVelocity = (rightDistance - prevRightDistance) / dt
+            // held back by the robot's progress, the path moves slower than its tables
+            val rate = if (progress != null) progress.rate else 1.0
+            val leftVelocity = setpoint.leftVelocity * rate + leftCorrectionVelocity
+            val rightVelocity = setpoint.rightVelocity * rate + rightCorrectionVelocity
 
             val velocityDeltaTimesCoefficient = (leftVelocity - rightVelocity) * parameters.headingFeedForward
 
@@ -93,11 +220,7 @@ suspend fun <T> T.driveAlongPath(
 
             driveClosedLoop(leftDistance, leftFeedForward, rightDistance, rightFeedForward)
 
-            if (t >= path.durationWithSpeed + extraTime) stop()
-
-            prevTime = t
-            prevLeftDistance = leftDistance
-            prevRightDistance = rightDistance
+            if (t >= trajectory.duration + extraTime || time >= trajectory.duration + extraTime + timeout) stop()
         }
     } finally {
         stop()
@@ -111,12 +234,13 @@ suspend fun ArcadeDrive.tuneDrivePositionController(controller: org.team2471.frc
     var prevRightDistance = 0.0
     var prevTime = 0.0
 
-    val timer = Timer().apply { start() }
+    val clock = coroutineContext.clock
+    val startTime = clock.time
 
     var angleErrorAccum = 0.0.degrees
     try {
         periodic {
-            val t = timer.get()
+            val t = clock.time - startTime
             val dt = t - prevTime
 
             // apply gyro corrections to the distances
@@ -189,3 +313,72 @@ fun ArcadeDrive.hybridDrive(throttle: Double, softTurn: Double, hardTurn: Double
 
     driveOpenLoop(leftPower, rightPower)
 }
+
+/**
+ * Follows [trajectory] on the motor controllers themselves, streaming each side's wheel profile into the [left] and
+ * [right] controllers' onboard motion profile buffers with a [MotorController.MotionProfileStream].
+ *
+ * Both sides are armed first and enabled in the same loop once both have [minBufferedPoints] points on the
+ * controller, so they start together. The feed-forward of each point is computed from the robot's [ArcadeParameters]
+ * as in [driveAlongPath], but there is no heading correction, and positions are the wheel distances from the start of
+ * the path, like those given to [ArcadeDrive.driveClosedLoop], in the controllers' feedback units.
+ *
+ * @param extraTime how long to keep holding the end of the path after its duration has passed
+ */
+suspend fun <T> T.streamAlongPath(
+        trajectory: ArcadeTrajectory,
+        left: MotorController,
+        right: MotorController,
+        extraTime: Double = 0.0,
+        minBufferedPoints: Int = 5
+) where T : ArcadeDrive, T : Subsystem = use(this, name = "Stream Along Path") {
+    val path = trajectory.path
+    println("Streaming path ${path.name}, duration: ${trajectory.duration}, " +
+            "travel direction: ${path.robotDirection}, mirrored: ${path.isMirrored}")
+
+    val leftFeedForward = DoubleArray(trajectory.size)
+    val rightFeedForward = DoubleArray(trajectory.size)
+    for (i in 0 until trajectory.size) {
+        val leftVelocity = trajectory.leftVelocity[i]
+        val rightVelocity = trajectory.rightVelocity[i]
+        val velocityDeltaTimesCoefficient = (leftVelocity - rightVelocity) * parameters.headingFeedForward
+        leftFeedForward[i] = leftVelocity * parameters.leftFeedForwardCoefficient +
+                (parameters.leftFeedForwardOffset * Math.signum(leftVelocity)) +
+                velocityDeltaTimesCoefficient
+        rightFeedForward[i] = rightVelocity * parameters.rightFeedForwardCoefficient +
+                (parameters.rightFeedForwardOffset * Math.signum(rightVelocity)) -
+                velocityDeltaTimesCoefficient
+    }
+    val leftStream = left.streamMotionProfile(
+            trajectory.leftPosition, trajectory.leftVelocity, trajectory.step, leftFeedForward)
+    val rightStream = right.streamMotionProfile(
+            trajectory.rightPosition, trajectory.rightVelocity, trajectory.step, rightFeedForward)
+
+    startFollowing()
+    try {
+        leftStream.arm(minBufferedPoints)
+        rightStream.arm(minBufferedPoints)
+
+        val clock = coroutineContext.clock
+        var startTime = Double.NaN
+        periodic {
+            if (startTime.isNaN()) {
+                if (leftStream.isReady && rightStream.isReady) {
+                    leftStream.enable()
+                    rightStream.enable()
+                    startTime = clock.time
+                }
+            } else if (clock.time - startTime >= trajectory.duration + extraTime) {
+                stop()
+            }
+        }
+        if (leftStream.hasUnderrun || rightStream.hasUnderrun) {
+            println("Streaming path ${path.name} ran out of points on the controllers")
+        }
+    } finally {
+        leftStream.close()
+        rightStream.close()
+        stop()
+        stopFollowing()
+    }
+}
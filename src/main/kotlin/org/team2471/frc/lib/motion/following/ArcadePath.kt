@@ -3,23 +3,55 @@ package org.team2471.frc.lib.motion.following
 import org.team2471.frc.lib.math.Vector2
 import org.team2471.frc.lib.motion_profiling.Path2D
 
+/**
+ * The distances driven by the left and right sides of an arcade drive following [path].
+ *
+ * Each [update] evaluates the path's center position and tangent once, into preallocated vectors, and offsets both
+ * sides from them, so a tick costs two path evaluations however many of the getters are read at that time, and
+ * allocates nothing.
+ */
 class ArcadePath(private val path: Path2D, private val finalTrackWidth: Double) {
-    private var prevCenterPositionForLeft: Vector2? = null
-    private var prevCenterPositionForRight: Vector2? = null
-    private var prevLeftPosition: Vector2? = null
-    private var prevRightPosition: Vector2? = null
-    private var leftDistance: Double = 0.0
-    private var rightDistance: Double = 0.0
+    private var time = Double.NaN
+    private var hasPrev = false
+
+    private val center = Vector2(0.0, 0.0)
+    private val tangent = Vector2(0.0, 0.0)
+
+    private var centerX = 0.0
+    private var centerY = 0.0
+    private var leftX = 0.0
+    private var leftY = 0.0
+    private var rightX = 0.0
+    private var rightY = 0.0
+
+    // the unit tangent, kept from the last time the path was moving
+    private var tangentX = 0.0
+    private var tangentY = 1.0
+
+    private var leftDelta = 0.0
+    private var rightDelta = 0.0
+    private var leftDistance = 0.0
+    private var rightDistance = 0.0
+
+    /**
+     * The direction of travel at the last [update], in degrees, as [Vector2.angle] of [Path2D.getTangent].
+     */
+    val tangentAngle get() = Math.toDegrees(Math.atan2(tangentX, tangentY))
 
     fun resetDistances() {
+        time = Double.NaN
+        hasPrev = false
+        leftDelta = 0.0
+        rightDelta = 0.0
+        leftDistance = 0.0
         rightDistance = 0.0
-        leftDistance = rightDistance
-        prevCenterPositionForLeft = null
-        prevCenterPositionForRight = null
-        prevLeftPosition = null
-        prevRightPosition = null
     }
 
+    /**
+     * Bakes the whole path into left and right wheel profiles at a fixed [step], for following by table lookup.
+     */
+    fun bake(step: Double = 0.01) = ArcadeTrajectory(path, finalTrackWidth, step)
+
     fun getLeftPosition(time: Double): Vector2 {
         return path.getSidePosition(time, -finalTrackWidth / 2.0)
     }
@@ -28,63 +60,74 @@ class ArcadePath(private val path: Path2D, private val finalTrackWidth: Double)
         return path.getSidePosition(time, finalTrackWidth / 2.0)
     }
 
-    fun getLeftPositionDelta(time: Double): Double {
-        if (prevLeftPosition == null) {
-            prevCenterPositionForLeft = path.getPosition(time)
-            prevLeftPosition = getLeftPosition(time)
-            return 0.0
+    /**
+     * Moves both sides along the path to [time], accumulating their distances. Repeated calls with the same time do
+     * nothing.
+     */
+    fun update(time: Double) {
+        if (time == this.time) return
+        this.time = time
+
+        path.getPosition(time, center)
+        path.getTangent(time, tangent)
+        val length = tangent.length
+        if (length > 0.0) {
+            tangentX = tangent.x / length
+            tangentY = tangent.y / length
         }
 
-        val centerPosition = path.getPosition(time)
-        val leftPosition = getLeftPosition(time)
-        val deltaCenter = centerPosition - prevCenterPositionForLeft!!
-        val deltaLeft = leftPosition - prevLeftPosition!!
-        prevCenterPositionForLeft = centerPosition
-        prevLeftPosition = leftPosition
+        // the same offset as Path2D.getSidePosition, along the perpendicular of the tangent
+        val offset = finalTrackWidth / 2.0 * Math.copySign(1.0, path.speed)
+        val newLeftX = center.x - tangentY * offset
+        val newLeftY = center.y + tangentX * offset
+        val newRightX = center.x + tangentY * offset
+        val newRightY = center.y - tangentX * offset
 
-        val result = if (deltaCenter.dot(deltaLeft) > 0) {
-            deltaLeft.length
+        if (hasPrev) {
+            val deltaCenterX = center.x - centerX
+            val deltaCenterY = center.y - centerY
+            leftDelta = sideDelta(deltaCenterX, deltaCenterY, newLeftX - leftX, newLeftY - leftY)
+            rightDelta = sideDelta(deltaCenterX, deltaCenterY, newRightX - rightX, newRightY - rightY)
         } else {
-            -deltaLeft.length
+            leftDelta = 0.0
+            rightDelta = 0.0
+            hasPrev = true
         }
-        return if (path.robotDirection == Path2D.RobotDirection.FORWARD)
-            result
-        else
-            -result
+        leftDistance += leftDelta
+        rightDistance += rightDelta
+
+        centerX = center.x
+        centerY = center.y
+        leftX = newLeftX
+        leftY = newLeftY
+        rightX = newRightX
+        rightY = newRightY
     }
 
-    fun getRightPositionDelta(time: Double): Double {
-        if (prevRightPosition == null) {
-            prevCenterPositionForRight = path.getPosition(time)
-            prevRightPosition = getRightPosition(time)
-            return 0.0
-        }
+    // the distance a side moved, negative when it moved against the center or the robot drives backwards
+    private fun sideDelta(deltaCenterX: Double, deltaCenterY: Double, deltaX: Double, deltaY: Double): Double {
+        val length = Math.hypot(deltaX, deltaY)
+        val result = if (deltaCenterX * deltaX + deltaCenterY * deltaY > 0) length else -length
+        return if (path.robotDirection == Path2D.RobotDirection.FORWARD) result else -result
+    }
 
-        val centerPosition = path.getPosition(time)
-        val rightPosition = getRightPosition(time)
-        val deltaCenter = centerPosition - prevCenterPositionForRight!!
-        val deltaRight = rightPosition - prevRightPosition!!
-        prevCenterPositionForRight = centerPosition
-        prevRightPosition = rightPosition
+    fun getLeftPositionDelta(time: Double): Double {
+        update(time)
+        return leftDelta
+    }
 
-        val result = if (deltaCenter.dot(deltaRight) > 0) {
-           deltaRight.length
-        } else {
-            -deltaRight.length
-        }
-        return if (path.robotDirection == Path2D.RobotDirection.FORWARD)
-            result
-        else
-            -result
+    fun getRightPositionDelta(time: Double): Double {
+        update(time)
+        return rightDelta
     }
 
     fun getLeftDistance(time: Double): Double {
-        leftDistance += getLeftPositionDelta(time)
+        update(time)
         return leftDistance
     }
 
     fun getRightDistance(time: Double): Double {
-        rightDistance += getRightPositionDelta(time)
+        update(time)
         return rightDistance
     }
 }
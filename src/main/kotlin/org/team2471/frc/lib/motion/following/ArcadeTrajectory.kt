@@ -0,0 +1,123 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.motion_profiling.Path2D
+import kotlin.math.ceil
+import kotlin.math.min
+
+/**
+ * The left and right wheel profiles of an arcade drive following [path], baked ahead of time into tables of
+ * position, velocity and acceleration at a fixed [step].
+ *
+ * The sides are integrated once with an [ArcadePath] at the fixed step, so following reads the same profile however
+ * the loop runs, a trajectory can be reused between runs, and the tables can be streamed to motor controllers as they
+ * are. Velocities and accelerations are central differences of the tables.
+ *
+ * @param trackWidth the effective track width, usually the track width times the scrub factor
+ * @param step the time between samples, in seconds
+ */
+class ArcadeTrajectory(val path: Path2D, val trackWidth: Double, val step: Double = 0.01) {
+    /**
+     * The time it takes to drive the path at its speed.
+     */
+    val duration = path.durationWithSpeed
+
+    /**
+     * The number of samples, from time zero to [duration].
+     */
+    val size: Int
+
+    // distances driven by each side since the start of the path
+    val leftPosition: DoubleArray
+    val rightPosition: DoubleArray
+    val leftVelocity: DoubleArray
+    val rightVelocity: DoubleArray
+    val leftAcceleration: DoubleArray
+    val rightAcceleration: DoubleArray
+
+    /**
+     * The direction of travel, in degrees, as [ArcadePath.tangentAngle] but without wrapping.
+     */
+    val tangentAngle: DoubleArray
+
+    class Sample {
+        var time = 0.0
+        var leftPosition = 0.0
+        var rightPosition = 0.0
+        var leftVelocity = 0.0
+        var rightVelocity = 0.0
+        var leftAcceleration = 0.0
+        var rightAcceleration = 0.0
+        var tangentAngle = 0.0
+    }
+
+    init {
+        require(step > 0.0) { "The step must be positive, got $step" }
+        require(duration > 0.0) { "Cannot bake path ${path.name} with no duration" }
+
+        size = ceil(duration / step - 1e-9).toInt() + 1
+        leftPosition = DoubleArray(size)
+        rightPosition = DoubleArray(size)
+        leftVelocity = DoubleArray(size)
+        rightVelocity = DoubleArray(size)
+        leftAcceleration = DoubleArray(size)
+        rightAcceleration = DoubleArray(size)
+        tangentAngle = DoubleArray(size)
+
+        val arcadePath = ArcadePath(path, trackWidth)
+        for (i in 0 until size) {
+            leftPosition[i] = arcadePath.getLeftDistance(timeAt(i))
+            rightPosition[i] = arcadePath.getRightDistance(timeAt(i))
+
+            // unwrapped, so interpolating across +/-180 doesn't swing through 0
+            val angle = arcadePath.tangentAngle
+            tangentAngle[i] = if (i == 0) angle else
+                tangentAngle[i - 1] + Math.IEEEremainder(angle - tangentAngle[i - 1], 360.0)
+        }
+        differentiate(leftPosition, leftVelocity)
+        differentiate(rightPosition, rightVelocity)
+        differentiate(leftVelocity, leftAcceleration)
+        differentiate(rightVelocity, rightAcceleration)
+    }
+
+    /**
+     * The time of the sample at [index].
+     */
+    fun timeAt(index: Int) = if (index >= size - 1) duration else index * step
+
+    /**
+     * Linearly interpolates the tables at [time] into [out]. Times outside of the trajectory return its ends, at rest.
+     *
+     * @return [out]
+     */
+    fun sample(time: Double, out: Sample): Sample {
+        val clamped = time.coerceIn(0.0, duration)
+        val i = if (size < 2) 0 else (clamped / step).toInt().coerceIn(0, size - 2)
+        val j = min(i + 1, size - 1)
+        val span = timeAt(j) - timeAt(i)
+        val k = if (span <= 0.0) 0.0 else ((clamped - timeAt(i)) / span).coerceIn(0.0, 1.0)
+        val isMoving = time in 0.0..duration
+
+        out.time = clamped
+        out.leftPosition = lerp(leftPosition, i, j, k)
+        out.rightPosition = lerp(rightPosition, i, j, k)
+        out.leftVelocity = if (isMoving) lerp(leftVelocity, i, j, k) else 0.0
+        out.rightVelocity = if (isMoving) lerp(rightVelocity, i, j, k) else 0.0
+        out.leftAcceleration = if (isMoving) lerp(leftAcceleration, i, j, k) else 0.0
+        out.rightAcceleration = if (isMoving) lerp(rightAcceleration, i, j, k) else 0.0
+        out.tangentAngle = lerp(tangentAngle, i, j, k)
+        return out
+    }
+
+    // central differences in the middle, one-sided at the ends
+    private fun differentiate(values: DoubleArray, out: DoubleArray) {
+        if (size < 2) return
+        for (i in 0 until size) {
+            val before = if (i == 0) 0 else i - 1
+            val after = if (i == size - 1) i else i + 1
+            val span = timeAt(after) - timeAt(before)
+            out[i] = if (span <= 0.0) 0.0 else (values[after] - values[before]) / span
+        }
+    }
+
+    private fun lerp(values: DoubleArray, i: Int, j: Int, k: Double) = values[i] + (values[j] - values[i]) * k
+}
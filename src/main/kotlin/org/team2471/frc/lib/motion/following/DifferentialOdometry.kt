@@ -0,0 +1,186 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.coroutines.Clock
+import org.team2471.frc.lib.coroutines.FpgaClock
+import org.team2471.frc.lib.units.Angle
+import org.team2471.frc.lib.units.asRadians
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.sin
+
+/**
+ * Odometry for a differential (arcade or tank) drive, the counterpart of [SwerveOdometry] for [ArcadeDrive]s.
+ *
+ * Each [update] reads how far each side has driven since the last update and integrates their average along an arc,
+ * taking the rotation from the gyro, then records the pose into a [PoseHistory] stamped with [clock]. The history
+ * can be read from any thread with [lookupPose] and [latestPose], for latency compensation and path projection.
+ *
+ * Updates must come from one thread at a time, which is the odometry thread once [start] has been called. Everything
+ * is kept in primitives, so updates allocate nothing.
+ *
+ * @param sensors the encoders and gyro to integrate
+ */
+class DifferentialOdometry(
+    private val sensors: Sensors,
+    val clock: Clock = FpgaClock,
+    historyCapacity: Int = 75
+) {
+    /**
+     * The readings odometry integrates. Distances are in the same units as the field, positive driving forwards.
+     */
+    interface Sensors {
+        val leftDistance: Double
+        val rightDistance: Double
+
+        /**
+         * The gyro heading, increasing clockwise like [ArcadeDrive.heading].
+         */
+        val heading: Angle
+    }
+
+    private val history = PoseHistory(historyCapacity)
+
+    // created by the first start, so odometry updated by hand never needs a notifier
+    private var service: OdometryService? = null
+
+    // written only by the odometry writer
+    private var x = 0.0
+    private var y = 0.0
+    private var hasPrev = false
+    private var prevLeftDistance = 0.0
+    private var prevRightDistance = 0.0
+    private var prevHeadingRadians = 0.0
+    private var prevTime = 0.0
+
+    // a reset requested by another thread, applied by the writer on its next update. Requests are numbered, so one
+    // arriving while the writer applies an earlier one is applied by the update after.
+    private var resetX = 0.0
+    private var resetY = 0.0
+    private val requestedReset = AtomicInteger()
+    @Volatile
+    private var appliedReset = 0
+
+    /**
+     * Whether a [reset] is waiting for the next [update], until which the recorded poses are from before it.
+     */
+    val isResetPending get() = requestedReset.get() != appliedReset
+
+    /**
+     * The field-relative velocity from the last [update], in distance per second.
+     */
+    @Volatile
+    var velocityX = 0.0
+        private set
+    @Volatile
+    var velocityY = 0.0
+        private set
+
+    val isRunning get() = service?.isRunning == true
+
+    /**
+     * Moves the robot to ([x], [y]) on the next [update], which also takes the current encoder and gyro readings as
+     * its starting point, so zeroing the encoders at the same time isn't seen as motion.
+     */
+    fun reset(x: Double = 0.0, y: Double = 0.0) {
+        resetX = x
+        resetY = y
+        requestedReset.incrementAndGet()
+    }
+
+    /**
+     * Reads the encoders and gyro, integrates the motion since the last update and records the pose.
+     */
+    fun update() {
+        // sample the time with the sensors, so the pose history lines up with when they were read
+        val time = clock.time
+        val leftDistance = sensors.leftDistance
+        val rightDistance = sensors.rightDistance
+        val heading = sensors.heading
+        val headingRadians = heading.asRadians
+
+        val resetRequest = requestedReset.get()
+        if (resetRequest != appliedReset) {
+            x = resetX
+            y = resetY
+            hasPrev = false
+            history.clear()
+        }
+        if (!hasPrev) {
+            prevLeftDistance = leftDistance
+            prevRightDistance = rightDistance
+            prevHeadingRadians = headingRadians
+            prevTime = time
+            hasPrev = true
+        }
+
+        val distance = (leftDistance - prevLeftDistance + rightDistance - prevRightDistance) / 2.0
+        // heading increases clockwise
+        val rotation = Math.IEEEremainder(headingRadians - prevHeadingRadians, 2.0 * Math.PI)
+
+        // integrate assuming the heading turns at a constant rate over the update
+        val sinIntegral: Double
+        val cosIntegral: Double
+        if (abs(rotation) < 1e-9) {
+            val midHeading = prevHeadingRadians + rotation / 2.0
+            sinIntegral = sin(midHeading)
+            cosIntegral = cos(midHeading)
+        } else {
+            val endHeading = prevHeadingRadians + rotation
+            sinIntegral = (cos(prevHeadingRadians) - cos(endHeading)) / rotation
+            cosIntegral = (sin(endHeading) - sin(prevHeadingRadians)) / rotation
+        }
+        val deltaX = distance * sinIntegral
+        val deltaY = distance * cosIntegral
+        x += deltaX
+        y += deltaY
+
+        val deltaTime = time - prevTime
+        if (deltaTime > 0.0) {
+            velocityX = deltaX / deltaTime
+            velocityY = deltaY / deltaTime
+        }
+
+        history.record(time, x, y, heading)
+        // marked applied once the reset pose is recorded, so readers waiting on it never see the pose from before
+        appliedReset = resetRequest
+        prevLeftDistance = leftDistance
+        prevRightDistance = rightDistance
+        prevHeadingRadians = headingRadians
+        prevTime = time
+    }
+
+    /**
+     * Interpolates the recorded pose at [time] into [out] without allocating.
+     *
+     * @return false if no odometry has been recorded yet
+     */
+    fun lookupPose(time: Double, out: PoseHistory.Sample): Boolean = history.lookup(time, out)
+
+    /**
+     * Copies the newest recorded pose into [out] without locking, which is safe while odometry runs on its own thread.
+     *
+     * @return false if no odometry has been recorded yet
+     */
+    fun latestPose(out: PoseHistory.Sample): Boolean = history.latest(out)
+
+    /**
+     * Updates [rate] times per second on a dedicated thread, independent of the control loop.
+     */
+    fun start(rate: Double = 200.0) {
+        val service = service ?: OdometryService { update() }.also { this.service = it }
+        service.start(rate)
+    }
+
+    fun stop() {
+        service?.stop()
+    }
+
+    /**
+     * Stops updating and releases the odometry thread.
+     */
+    fun close() {
+        service?.close()
+        service = null
+    }
+}
@@ -0,0 +1,149 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.control.LinearQuadraticRegulator
+import org.team2471.frc.lib.motion_profiling.PathTrajectory
+import kotlin.math.hypot
+
+/**
+ * Time-varying LQR gains along a [PathTrajectory], solved offline so that following needs only a matrix-vector
+ * multiply per tick.
+ *
+ * The tracking error is measured in the path's frame, as the actual pose minus the trajectory:
+ * 1. along-track distance, forward along the path
+ * 2. cross-track distance, to the right of the path
+ * 3. heading, in degrees
+ *
+ * The model is linearized about the trajectory at every sample, so the frame turning with the path couples the
+ * along-track and cross-track errors, and for a [differential] drive a heading error becomes cross-track drift at the
+ * path's speed. The Riccati equation is stepped backwards from the end of the path once, storing one gain matrix per
+ * sample in a single primitive array.
+ *
+ * The model is discretized at the follower's [period], which need not match the trajectory's step: the regulator takes
+ * one step per period, and each sample keeps the gains of the step it falls in.
+ *
+ * @property inputs the size of a [correction], see [differential] and [swerve]
+ * @property period the time between the follower's corrections, in seconds
+ */
+class LqrGainSchedule private constructor(val trajectory: PathTrajectory, val inputs: Int, val period: Double) {
+    /**
+     * The gain matrices, inputs by [STATES] per sample, one sample after another.
+     */
+    val gains = DoubleArray(trajectory.size * inputs * STATES)
+
+    /**
+     * Computes the velocity [out] which corrects the path-frame [error] at [time], using the gains of the nearest
+     * sample. The trajectory's own velocity and heading rate are not included.
+     */
+    fun correction(time: Double, error: DoubleArray, out: DoubleArray) {
+        val index = Math.round(time / trajectory.step).toInt().coerceIn(0, trajectory.size - 1)
+        val offset = index * inputs * STATES
+        for (i in 0 until inputs) {
+            var sum = 0.0
+            for (j in 0 until STATES) {
+                sum -= gains[offset + i * STATES + j] * error[j]
+            }
+            out[i] = sum
+        }
+    }
+
+    init {
+        require(period > 0.0) { "The period must be positive, got $period" }
+    }
+
+    // steps the regulator backwards from the end of the trajectory one period at a time, with [model] filling in A
+    // and B from the sample the step ends at
+    private inline fun solve(regulator: LinearQuadraticRegulator, model: (speed: Double) -> Unit) {
+        regulator.reset()
+        var solvedTime = trajectory.duration + period
+        for (index in trajectory.size - 1 downTo 0) {
+            val time = trajectory.timeAt(index)
+            val speed = hypot(trajectory.velocityX[index], trajectory.velocityY[index])
+            // the rate the path's frame turns, clockwise in radians per second
+            val turnRate = trajectory.curvature[index] * speed
+
+            while (solvedTime > time + 1e-9) {
+                regulator.setDiagonal(regulator.a, 1.0, 1.0, 1.0)
+                regulator.a[1] = turnRate * period
+                regulator.a[3] = -turnRate * period
+                regulator.b.fill(0.0)
+                model(speed)
+
+                regulator.step()
+                solvedTime -= period
+            }
+            regulator.gain.copyInto(gains, index * inputs * STATES)
+        }
+    }
+
+    companion object {
+        const val STATES = 3
+
+        /**
+         * Gains for a differential drive, which corrects with its speed along the path and turn rate. A [correction] is
+         * the change in speed along the path, in distance per second, followed by the change in turn rate, in degrees
+         * per second. A robot driving the path backwards applies the speed change in reverse.
+         *
+         * Errors are weighted by the inverse square of their tolerances, and corrections by the inverse square of the
+         * correction expected for those errors.
+         *
+         * Follow it with an [ArcadeDrive] by passing it and the robot's [DifferentialOdometry] to [driveAlongPath],
+         * which runs at the schedule's [period].
+         */
+        fun differential(
+            trajectory: PathTrajectory,
+            positionTolerance: Double = 0.1,
+            headingTolerance: Double = 5.0,
+            speedCorrection: Double = 1.0,
+            turnRateCorrection: Double = 45.0,
+            period: Double = 0.02
+        ): LqrGainSchedule {
+            val schedule = LqrGainSchedule(trajectory, 2, period)
+            val regulator = LinearQuadraticRegulator(STATES, 2)
+            regulator.setDiagonal(regulator.q, bryson(positionTolerance), bryson(positionTolerance), bryson(headingTolerance))
+            regulator.setDiagonal(regulator.r, bryson(speedCorrection), bryson(turnRateCorrection))
+
+            schedule.solve(regulator) { speed ->
+                // a heading error turns the robot's velocity, forwards or backwards, across the path
+                regulator.a[5] = speed * Math.toRadians(1.0) * period
+                regulator.b[0] = period // speed along the path
+                regulator.b[5] = period // turn rate into heading
+            }
+            return schedule
+        }
+
+        /**
+         * Gains for a swerve drive, which corrects position and heading independently. A [correction] is the change
+         * in along-track and cross-track velocity, in distance per second, followed by the change in turn rate, in
+         * degrees per second.
+         *
+         * Errors are weighted by the inverse square of their tolerances, and corrections by the inverse square of the
+         * correction expected for those errors.
+         *
+         * [follow] runs the follower at the schedule's [period].
+         */
+        fun swerve(
+            trajectory: PathTrajectory,
+            positionTolerance: Double = 0.1,
+            headingTolerance: Double = 2.0,
+            velocityCorrection: Double = 1.0,
+            turnRateCorrection: Double = 45.0,
+            period: Double = 0.02
+        ): LqrGainSchedule {
+            val schedule = LqrGainSchedule(trajectory, 3, period)
+            val regulator = LinearQuadraticRegulator(STATES, 3)
+            regulator.setDiagonal(regulator.q, bryson(positionTolerance), bryson(positionTolerance), bryson(headingTolerance))
+            regulator.setDiagonal(
+                regulator.r, bryson(velocityCorrection), bryson(velocityCorrection), bryson(turnRateCorrection)
+            )
+
+            schedule.solve(regulator) {
+                regulator.b[0] = period
+                regulator.b[4] = period
+                regulator.b[8] = period
+            }
+            return schedule
+        }
+
+        private fun bryson(tolerance: Double) = 1.0 / (tolerance * tolerance)
+    }
+}
@@ -0,0 +1,53 @@
+package org.team2471.frc.lib.motion.following
+
+import edu.wpi.first.wpilibj.Notifier
+
+/**
+ * Runs an odometry [update] on its own thread at a fixed rate, independent of the control loop, so the pose keeps
+ * being integrated even if the loop stalls or stops driving.
+ *
+ * The update is the only writer of its pose history; other threads should read the pose through the history.
+ */
+class OdometryService(private val update: () -> Unit) {
+    // held by every update, so stopping can wait out an update which is already running
+    private val lock = Any()
+    private val notifier = Notifier {
+        synchronized(lock) {
+            if (isRunning) update()
+        }
+    }
+
+    /**
+     * Whether the notifier owns the updates. It is set before the first update and cleared only once no update is
+     * running, so a caller which sees it false can update from its own thread without racing the notifier.
+     */
+    @Volatile
+    var isRunning = false
+        private set
+
+    /**
+     * Starts updating [rate] times per second.
+     */
+    fun start(rate: Double = 200.0) {
+        isRunning = true
+        notifier.startPeriodic(1.0 / rate)
+    }
+
+    /**
+     * Stops updating, returning once an update already running on the notifier has finished.
+     */
+    fun stop() {
+        notifier.stop()
+        synchronized(lock) {
+            isRunning = false
+        }
+    }
+
+    /**
+     * Stops updating and releases the notifier.
+     */
+    fun close() {
+        stop()
+        notifier.close()
+    }
+}
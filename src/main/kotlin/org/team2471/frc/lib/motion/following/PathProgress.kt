@@ -0,0 +1,169 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.motion_profiling.PathTrajectory
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Warps time along a [PathTrajectory] by how far the robot has actually got along it, so that a robot which is
+ * blocked, pushed or slipping keeps its setpoint at most [maxLead] ahead instead of letting it run away.
+ *
+ * The path time advances with real time until the setpoint would lead the robot's progress along the path by more
+ * than [maxLead], and then holds at that distance. Once the robot catches up, the path time advances with real time
+ * again, so the setpoint never jumps and the path's feed-forwards resume where they left off.
+ *
+ * Progress is found in the trajectory's distance table, searching at most [searchWindow] samples either side of the
+ * last projection, so each [update] takes constant time and a robot pushed back along the path is found again.
+ *
+ * The warped path time never reaches the end of the path while the robot stays blocked, so followers also give up a
+ * timeout after the path should have finished.
+ *
+ * @param maxLead how far along the path the setpoint may run ahead of the robot, infinite to never warp
+ */
+class PathProgress(
+    val trajectory: PathTrajectory,
+    maxLead: Double = Double.POSITIVE_INFINITY,
+    val searchWindow: Int = 50
+) {
+    var maxLead = maxLead
+        set(value) {
+            require(value >= 0.0) { "The maximum lead cannot be negative, got $value" }
+            field = value
+        }
+
+    /**
+     * The warped time along the path of the last [update].
+     */
+    var pathTime = 0.0
+        private set
+
+    /**
+     * The robot's distance along the path at the last [update].
+     */
+    var distance = 0.0
+        private set
+
+    /**
+     * How fast the path time advanced against real time at the last [update], 1 when the robot keeps up and 0 while it
+     * is held back, for scaling feed-forwards read at the path time.
+     */
+    var rate = 1.0
+        private set
+
+    private var index = 0
+    private var prevTime = Double.NaN
+
+    init {
+        this.maxLead = maxLead
+        require(searchWindow > 0) { "The search window must be positive, got $searchWindow" }
+    }
+
+    fun reset() {
+        pathTime = 0.0
+        distance = 0.0
+        rate = 1.0
+        index = 0
+        prevTime = Double.NaN
+    }
+
+    /**
+     * Projects the robot's field position ([x], [y]) onto the path and returns the path time for [time] seconds since
+     * the path started.
+     */
+    fun update(time: Double, x: Double, y: Double): Double {
+        project(x, y)
+        return advance(time)
+    }
+
+    /**
+     * Returns the path time for [time] seconds since the path started, for a robot which has [travelled] the given
+     * distance along the path, such as a differential drive's average wheel distance.
+     */
+    fun update(time: Double, travelled: Double): Double {
+        distance = travelled
+        return advance(time)
+    }
+
+    private fun advance(time: Double): Double {
+        val dt = if (prevTime.isNaN()) time else time - prevTime
+        prevTime = time
+
+        var next = pathTime + max(dt, 0.0)
+        val limit = distance + maxLead
+        if (distanceAt(next) > limit) next = timeAtDistance(limit, pathTime, next)
+        rate = if (dt > 0.0) (next - pathTime) / dt else 1.0
+        pathTime = next
+        return next
+    }
+
+    // the sample nearest the robot, around the last one, and the distance of the robot projected beside it
+    private fun project(x: Double, y: Double) {
+        val xs = trajectory.x
+        val ys = trajectory.y
+        val distances = trajectory.distance
+
+        // ties go to the later sample, so the search walks through the stops in a path
+        val first = max(index - searchWindow, 0)
+        val last = min(index + searchWindow, trajectory.size - 1)
+        var best = index
+        var bestSquared = Double.POSITIVE_INFINITY
+        for (i in first..last) {
+            val dx = x - xs[i]
+            val dy = y - ys[i]
+            val squared = dx * dx + dy * dy
+            if (squared <= bestSquared) {
+                best = i
+                bestSquared = squared
+            }
+        }
+        index = best
+
+        var progress = 0.0
+        if (best + 1 < trajectory.size) {
+            progress = along(x, y, best, best + 1)
+        }
+        if (progress <= 0.0 && best > 0) {
+            progress = -along(x, y, best, best - 1)
+        }
+        distance = distances[best] + progress
+    }
+
+    // how far (x, y) lies from sample [from] toward sample [to], within the segment between them
+    private fun along(x: Double, y: Double, from: Int, to: Int): Double {
+        val segmentX = trajectory.x[to] - trajectory.x[from]
+        val segmentY = trajectory.y[to] - trajectory.y[from]
+        val length = Math.hypot(segmentX, segmentY)
+        if (length <= 0.0) return 0.0
+        val projection = ((x - trajectory.x[from]) * segmentX + (y - trajectory.y[from]) * segmentY) / length
+        return projection.coerceIn(0.0, length)
+    }
+
+    private fun sampleIndex(time: Double) = (time / trajectory.step).toInt().coerceIn(0, trajectory.size - 1)
+
+    private fun distanceAt(time: Double): Double {
+        val distances = trajectory.distance
+        val i = sampleIndex(time)
+        val j = min(i + 1, trajectory.size - 1)
+        val span = trajectory.timeAt(j) - trajectory.timeAt(i)
+        val k = if (span <= 0.0) 0.0 else ((time - trajectory.timeAt(i)) / span).coerceIn(0.0, 1.0)
+        return distances[i] + (distances[j] - distances[i]) * k
+    }
+
+    // the latest time between [from] and [to] at which the path has covered [target], walking back from [to]
+    private fun timeAtDistance(target: Double, from: Double, to: Double): Double {
+        val distances = trajectory.distance
+        val first = sampleIndex(from)
+        var i = sampleIndex(to)
+        while (i > first && distances[i] > target) i--
+        if (distances[i] > target) return from
+
+        val j = min(i + 1, trajectory.size - 1)
+        val span = distances[j] - distances[i]
+        val time = if (span <= 0.0) {
+            trajectory.timeAt(i)
+        } else {
+            trajectory.timeAt(i) + (target - distances[i]) / span * (trajectory.timeAt(j) - trajectory.timeAt(i))
+        }
+        return time.coerceIn(from, to)
+    }
+}
@@ -0,0 +1,213 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.units.Angle
+import org.team2471.frc.lib.units.degrees
+import java.lang.invoke.VarHandle
+
+/**
+ * A fixed-capacity, time-ordered history of robot poses.
+ *
+ * Samples are stored in primitive arrays used as a ring buffer, so recording and looking up poses allocate nothing.
+ * Samples must be recorded in increasing time order; once [capacity] is reached the oldest sample is overwritten.
+ *
+ * The history is guarded by a sequence lock: a single thread may [record] while any number of threads look up
+ * poses without blocking. Readers that overlap a write detect the torn read and retry.
+ */
+class PoseHistory(val capacity: Int = 75) {
+    private val times = DoubleArray(capacity)
+    private val xs = DoubleArray(capacity)
+    private val ys = DoubleArray(capacity)
+    private val headings = DoubleArray(capacity) // degrees
+
+    private var head = 0 // physical index of the oldest sample
+
+    // odd while a write is in progress, incremented twice per write
+    @Volatile
+    private var sequence = 0L
+
+    /**
+     * The number of samples currently stored.
+     */
+    var size = 0
+        private set
+
+    /**
+     * A reusable, mutable pose used to receive lookups without allocating.
+     */
+    class Sample {
+        var time = 0.0
+        var x = 0.0
+        var y = 0.0
+        var heading: Angle = 0.0.degrees
+
+        override fun toString() = "Sample(time=$time, x=$x, y=$y, heading=$heading)"
+    }
+
+    /**
+     * Records a pose at [time]. A sample at the same time as the newest sample replaces it, and samples older than
+     * the newest sample are ignored.
+     *
+     * Only one thread may record into a history.
+     */
+    fun record(time: Double, x: Double, y: Double, heading: Angle) {
+        beginWrite()
+        try {
+            write(time, x, y, heading)
+        } finally {
+            endWrite()
+        }
+    }
+
+    private fun write(time: Double, x: Double, y: Double, heading: Angle) {
+        var index: Int
+        if (size > 0) {
+            val newest = physical(size - 1)
+            if (time < times[newest]) return
+            if (time == times[newest]) {
+                index = newest
+            } else if (size == capacity) {
+                index = head
+                head = (head + 1) % capacity
+            } else {
+                index = physical(size++)
+            }
+        } else {
+            index = physical(size++)
+        }
+
+        times[index] = time
+        xs[index] = x
+        ys[index] = y
+        headings[index] = heading.asDegrees
+    }
+
+    /**
+     * Moves every sample by a clockwise rotation of [rotation] degrees about the origin and then by ([x], [y]), such
+     * as when a correction moves the frame odometry is recorded in. Must be called from the recording thread.
+     */
+    fun transform(rotation: Double, x: Double, y: Double) {
+        val radians = Math.toRadians(rotation)
+        val c = Math.cos(radians)
+        val s = Math.sin(radians)
+        beginWrite()
+        try {
+            for (i in 0 until size) {
+                val index = physical(i)
+                val sampleX = xs[index]
+                val sampleY = ys[index]
+                xs[index] = sampleX * c + sampleY * s + x
+                ys[index] = -sampleX * s + sampleY * c + y
+                headings[index] += rotation
+            }
+        } finally {
+            endWrite()
+        }
+    }
+
+    /**
+     * Removes all samples. Must be called from the recording thread.
+     */
+    fun clear() {
+        beginWrite()
+        head = 0
+        size = 0
+        endWrite()
+    }
+
+    /**
+     * Linearly interpolates the pose at [time] into [out]. Times outside of the stored range return the nearest
+     * sample.
+     *
+     * @return false if the history is empty
+     */
+    fun lookup(time: Double, out: Sample): Boolean {
+        while (true) {
+            val seq = beginRead()
+            val found = read(time, out)
+            if (validate(seq)) return found
+        }
+    }
+
+    private fun read(time: Double, out: Sample): Boolean {
+        val head = head
+        val size = size
+        if (size == 0) return false
+
+        // largest logical index with a time <= the requested time
+        var low = 0
+        var high = size - 1
+        if (time < times[physical(head, 0)]) {
+            copy(physical(head, 0), out)
+            return true
+        }
+        while (low < high) {
+            val mid = (low + high + 1) ushr 1
+            if (times[physical(head, mid)] <= time) low = mid else high = mid - 1
+        }
+
+        val lower = physical(head, low)
+        if (low == size - 1 || times[lower] == time) {
+            copy(lower, out)
+            return true
+        }
+
+        val upper = physical(head, low + 1)
+        val span = times[upper] - times[lower]
+        val k = if (span <= 0.0) 0.0 else (time - times[lower]) / span
+
+        out.time = time
+        out.x = k * (xs[upper] - xs[lower]) + xs[lower]
+        out.y = k * (ys[upper] - ys[lower]) + ys[lower]
+        out.heading = ((headings[upper] - headings[lower]) * k + headings[lower]).degrees
+        return true
+    }
+
+    /**
+     * Copies the newest sample into [out].
+     *
+     * @return false if the history is empty
+     */
+    fun latest(out: Sample): Boolean {
+        while (true) {
+            val seq = beginRead()
+            val head = head
+            val size = size
+            if (size > 0) copy(physical(head, size - 1), out)
+            if (validate(seq)) return size > 0
+        }
+    }
+
+    private fun copy(index: Int, out: Sample) {
+        out.time = times[index]
+        out.x = xs[index]
+        out.y = ys[index]
+        out.heading = headings[index].degrees
+    }
+
+    private fun physical(logical: Int) = physical(head, logical)
+
+    private fun physical(head: Int, logical: Int) = (head + logical) % capacity
+
+    private fun beginWrite() {
+        sequence++
+        VarHandle.storeStoreFence() // the odd sequence must be visible before any data is changed
+    }
+
+    private fun endWrite() {
+        sequence++ // volatile write publishes the data written since beginWrite
+    }
+
+    private fun beginRead(): Long {
+        var seq = sequence
+        while (seq and 1L != 0L) {
+            Thread.onSpinWait()
+            seq = sequence
+        }
+        return seq
+    }
+
+    private fun validate(seq: Long): Boolean {
+        VarHandle.loadLoadFence() // data reads must complete before the sequence is checked again
+        return sequence == seq
+    }
+}
@@ -0,0 +1,305 @@
+package org.team2471.frc.lib.motion.following
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.launch
+import org.team2471.frc.lib.coroutines.VirtualClock
+import org.team2471.frc.lib.coroutines.periodic
+import org.team2471.frc.lib.math.Vector2
+import org.team2471.frc.lib.motion_profiling.Path2D
+import org.team2471.frc.lib.motion_profiling.following.SwerveParameters
+import org.team2471.frc.lib.units.*
+import java.util.stream.Collectors
+import kotlin.math.cos
+import kotlin.math.exp
+import kotlin.math.hypot
+import kotlin.math.sin
+
+/**
+ * A swerve module with first-order drive and steering response, for [SimulatedSwerveDrive].
+ *
+ * Distances are in the units of the paths being followed, usually feet.
+ *
+ * @param maxSpeed the wheel speed at full power
+ * @param driveTimeConstant the time for the wheel speed to cover 63% of a change in power
+ * @param steerTimeConstant the time for the module angle to cover 63% of a change in setpoint
+ */
+class SimulatedSwerveModule(
+    override val modulePosition: Vector2,
+    val maxSpeed: Double,
+    val driveTimeConstant: Double,
+    val steerTimeConstant: Double
+) : SwerveDrive.Module {
+    override val angleOffset = 0.0.degrees
+
+    override var angle = 0.0.degrees
+        private set
+
+    override var speed = 0.0
+        private set
+
+    override var currDistance = 0.0
+        private set
+
+    override var prevDistance = 0.0
+
+    override var angleSetpoint = 0.0.degrees
+
+    private var power = 0.0
+    private var distanceSetpoint = Double.NaN
+
+    override fun setDrivePower(power: Double) {
+        this.power = power.coerceIn(-1.0, 1.0)
+        distanceSetpoint = Double.NaN
+    }
+
+    override fun stop() {
+        power = 0.0
+        distanceSetpoint = Double.NaN
+    }
+
+    override fun zeroEncoder() {
+        currDistance = 0.0
+    }
+
+    override fun driveWithDistance(angle: Angle, distance: Length) {
+        angleSetpoint = angle
+        distanceSetpoint = currDistance + distance.asFeet
+    }
+
+    internal fun reset() {
+        stop()
+        speed = 0.0
+        angle = angleSetpoint
+    }
+
+    internal fun step(dt: Double) {
+        val steerError = (angleSetpoint - angle).wrap()
+        angle = (angle + steerError * (1.0 - exp(-dt / steerTimeConstant))).wrap()
+
+        val targetSpeed = if (distanceSetpoint.isNaN()) {
+            power * maxSpeed
+        } else {
+            ((distanceSetpoint - currDistance) / driveTimeConstant).coerceIn(-maxSpeed, maxSpeed)
+        }
+        val prevSpeed = speed
+        speed = targetSpeed + (speed - targetSpeed) * exp(-dt / driveTimeConstant)
+        currDistance += (prevSpeed + speed) / 2.0 * dt
+    }
+}
+
+/**
+ * A headless swerve drive for running followers without a robot.
+ *
+ * The modules respond to power and angle setpoints as first-order systems, and the robot moves by the rigid-body
+ * motion which best fits the module velocities. Nothing depends on the wall clock or on WPILib, so a simulation runs
+ * as fast as it can compute, gives the same result every time, and separate drives can run on separate threads.
+ *
+ * [heading] and [position] are what the robot believes, as the gyro and odometry report them, and may be reset like
+ * on a real robot; [actualHeading] and [actualPosition] are where the simulated robot really is.
+ *
+ * @param modulePositions the location of each module in robot coordinates
+ */
+class SimulatedSwerveDrive(
+    override val parameters: SwerveParameters,
+    modulePositions: List<Vector2>,
+    maxSpeed: Double = 12.0,
+    driveTimeConstant: Double = 0.1,
+    steerTimeConstant: Double = 0.05
+) : SwerveDrive {
+    val clock = VirtualClock()
+
+    override val state = SwerveDriveState(clock)
+
+    override val modules: Array<SwerveDrive.Module> = Array(modulePositions.size) {
+        SimulatedSwerveModule(modulePositions[it], maxSpeed, driveTimeConstant, steerTimeConstant)
+    }
+
+    override var position = Vector2(0.0, 0.0)
+    override var velocity = Vector2(0.0, 0.0)
+    override var robotPivot = Vector2(0.0, 0.0)
+    override var headingSetpoint = 0.0.degrees
+
+    var actualHeading = 0.0.degrees
+        private set
+
+    private var actualX = 0.0
+    private var actualY = 0.0
+
+    val actualPosition: Vector2
+        get() = Vector2(actualX, actualY)
+
+    // the gyro reading minus the actual heading, which changes when the gyro is reset
+    private var gyroOffset = 0.0.degrees
+
+    override var heading: Angle
+        get() = actualHeading + gyroOffset
+        set(value) {
+            gyroOffset = value - actualHeading
+        }
+
+    override var headingRate = 0.0.degrees.perSecond
+        private set
+
+    private val centroidX = modulePositions.sumByDouble { it.x } / modulePositions.size
+    private val centroidY = modulePositions.sumByDouble { it.y } / modulePositions.size
+    private val spread = modulePositions.sumByDouble {
+        (it.x - centroidX) * (it.x - centroidX) + (it.y - centroidY) * (it.y - centroidY)
+    }
+
+    init {
+        require(modulePositions.size >= 2) { "A swerve drive needs at least two modules" }
+    }
+
+    /**
+     * Places the robot at [position] facing [heading], at rest, with odometry and the gyro agreeing.
+     */
+    fun reset(position: Vector2, heading: Angle) {
+        for (module in modules) {
+            (module as SimulatedSwerveModule).reset()
+        }
+        actualX = position.x
+        actualY = position.y
+        actualHeading = heading
+        gyroOffset = 0.0.degrees
+        headingRate = 0.0.degrees.perSecond
+        resetOdometry(position, heading)
+    }
+
+    /**
+     * Moves the robot by [dt] seconds under the current module setpoints. The [clock] is left alone, since it may be
+     * driven by coroutines; see [simulate] and [simulatePath].
+     */
+    fun step(dt: Double) {
+        var sumX = 0.0
+        var sumY = 0.0
+        var sumCross = 0.0
+        for (module in modules) {
+            (module as SimulatedSwerveModule).step(dt)
+            val radians = module.angle.asRadians
+            val moduleVelocityX = module.speed * sin(radians)
+            val moduleVelocityY = module.speed * cos(radians)
+            sumX += moduleVelocityX
+            sumY += moduleVelocityY
+            sumCross += (module.modulePosition.y - centroidY) * moduleVelocityX -
+                    (module.modulePosition.x - centroidX) * moduleVelocityY
+        }
+
+        // least-squares rigid-body motion, where a module at (px, py) moves by (x + rotation * py, y - rotation * px)
+        // for a clockwise rotation
+        val rotationRate = if (spread > 0.0) sumCross / spread else 0.0
+        val robotVelocityX = sumX / modules.size - rotationRate * centroidY
+        val robotVelocityY = sumY / modules.size + rotationRate * centroidX
+
+        val midHeading = actualHeading.asRadians + rotationRate * dt / 2.0
+        val c = cos(midHeading)
+        val s = sin(midHeading)
+        actualX += (robotVelocityX * c + robotVelocityY * s) * dt
+        actualY += (-robotVelocityX * s + robotVelocityY * c) * dt
+        actualHeading += Math.toDegrees(rotationRate * dt).degrees
+        headingRate = Math.toDegrees(rotationRate).degrees.perSecond
+    }
+}
+
+/**
+ * Runs [block], such as a whole autonomous, against this drive in simulated time, stepping the physics every
+ * [period] seconds. Everything in [block] which waits on the clock, like [periodic], [driveAlongPath] or
+ * [org.team2471.frc.lib.coroutines.delay], takes no real time.
+ */
+fun <T> SimulatedSwerveDrive.simulate(period: Double = 0.005, block: suspend CoroutineScope.() -> T): T = clock.run {
+    val physics = launch {
+        periodic(period) {
+            step(period)
+        }
+    }
+    try {
+        block()
+    } finally {
+        physics.cancelAndJoin()
+    }
+}
+
+/**
+ * How closely a simulated drive followed a path.
+ *
+ * @property rmsHeadingError in degrees, like [maxHeadingError]
+ */
+data class SimulationResult(
+    val parameters: SwerveParameters,
+    val duration: Double,
+    val rmsPositionError: Double,
+    val maxPositionError: Double,
+    val finalPositionError: Double,
+    val rmsHeadingError: Double,
+    val maxHeadingError: Double
+)
+
+/**
+ * Follows [path] from its start with a [SwervePathFollower], using [lqr] gains if given, stepping the simulation
+ * every [period] seconds, and measures the actual pose against the path.
+ */
+fun SimulatedSwerveDrive.simulatePath(
+    path: Path2D,
+    period: Double = 0.02,
+    extraTime: Double = 0.0,
+    lqr: SwerveLqr? = null
+): SimulationResult {
+    reset(path.getPosition(0.0), path.getAbsoluteHeadingDegreesAt(0.0).degrees)
+
+    val follower = SwervePathFollower(this, path, extraTime, lqr)
+    val startTime = clock.time
+    var samples = 0
+    var sumPositionError = 0.0
+    var maxPositionError = 0.0
+    var positionError = 0.0
+    var sumHeadingError = 0.0
+    var maxHeadingError = 0.0
+    while (true) {
+        val t = clock.time - startTime
+        val isFinished = follower.update(t)
+
+        val setpoint = follower.setpoint
+        val actual = actualPosition
+        positionError = hypot(setpoint.x - actual.x, setpoint.y - actual.y)
+        val headingError = Math.abs((setpoint.heading.degrees - actualHeading).wrap().asDegrees)
+        samples++
+        sumPositionError += positionError * positionError
+        maxPositionError = Math.max(maxPositionError, positionError)
+        sumHeadingError += headingError * headingError
+        maxHeadingError = Math.max(maxHeadingError, headingError)
+
+        if (isFinished) break
+        step(period)
+        clock.advance(period)
+    }
+    stop()
+
+    return SimulationResult(
+        parameters,
+        clock.time - startTime,
+        Math.sqrt(sumPositionError / samples),
+        maxPositionError,
+        positionError,
+        Math.sqrt(sumHeadingError / samples),
+        maxHeadingError
+    )
+}
+
+/**
+ * Simulates following a path once for each set of [candidates] gains, in parallel, and returns the results in the
+ * order of [candidates].
+ *
+ * Paths cache their lookups and are not thread safe, so [path] is called to build a separate path for every run,
+ * e.g. `{ Autonomi.parse(json).getPath("Auto", "Path") }`.
+ *
+ * @param drive builds a drive with the given gains
+ */
+fun sweepSwerveGains(
+    candidates: List<SwerveParameters>,
+    path: () -> Path2D,
+    drive: (SwerveParameters) -> SimulatedSwerveDrive,
+    period: Double = 0.02,
+    extraTime: Double = 0.0
+): List<SimulationResult> = candidates.parallelStream()
+    .map { drive(it).simulatePath(path(), period, extraTime) }
+    .collect(Collectors.toList())
@@ -1,33 +1,33 @@
 package org.team2471.frc.lib.motion.following
 
 import com.team254.lib.util.Interpolable
-import com.team254.lib.util.InterpolatingDouble
-import com.team254.lib.util.InterpolatingTreeMap
-import edu.wpi.first.wpilibj.Timer
+import org.team2471.frc.lib.coroutines.clock
 import org.team2471.frc.lib.coroutines.delay
 import org.team2471.frc.lib.coroutines.periodic
 import org.team2471.frc.lib.math.Vector2
-import org.team2471.frc.lib.motion.following.SwerveDrive.Companion.prevTranslationInput
-import org.team2471.frc.lib.motion.following.SwerveDrive.Companion.prevTurn
 import org.team2471.frc.lib.motion_profiling.Path2D
+import org.team2471.frc.lib.motion_profiling.PathTrajectory
 import org.team2471.frc.lib.motion_profiling.following.SwerveParameters
 import org.team2471.frc.lib.units.*
+import kotlin.coroutines.coroutineContext
 import kotlin.math.absoluteValue
 import kotlin.math.cos
 import kotlin.math.sin
 
-private val poseHistory = InterpolatingTreeMap<InterpolatingDouble, SwerveDrive.Pose>(75)
-private var prevPosition = Vector2(0.0, 0.0)
-private var prevPathPosition = Vector2(0.0, 0.0)
-private var prevTime = 0.0
-private var prevPathHeading = 0.0.radians
+private val noSoftTranslation = Vector2(0.0, 0.0)
 private val MAXHEADINGSPEED_DEGREES_PER_SECOND = 600.0
-private var prevHeadingError = 0.0.degrees
 
 interface SwerveDrive {
     val parameters: SwerveParameters
     var heading: Angle
     val headingRate: AngularVelocity
+
+    /**
+     * Snapshots of the odometry position and field-relative velocity, refreshed on the control thread by each call to
+     * [drive]. They are vectors owned by the drive's [state] and updated in place, so copy them to keep a value.
+     * Setting them doesn't move odometry; use [resetOdometry]. Followers and other threads read the pose with
+     * [latestPose] instead.
+     */
     var position: Vector2
     var velocity: Vector2
     var robotPivot: Vector2 // location of rotational pivot in robot coordinates
@@ -35,13 +35,26 @@ interface SwerveDrive {
 
     val modules: Array<Module>
 
+    /**
+     * The odometry and follower state of this drive, read by every [drive], odometry update and vision measurement.
+     *
+     * Implementations should override it with their own `override val state = SwerveDriveState()`, as
+     * [SimulatedSwerveDrive] does. The default finds the state by the drive's identity in a table shared by all
+     * drives; the most recently used drive is found without locking, but alternating between drives takes a global
+     * lock on each lookup.
+     */
+    val state: SwerveDriveState
+        get() = SwerveDriveState.of(this)
+
     fun startFollowing() = Unit
 
     fun stopFollowing() = Unit
 
     interface Module {
         // module fixed parameters
-        val modulePosition: Vector2 // coordinates of module in robot coordinates
+        // coordinates of module in robot coordinates, in the units of currDistance, since odometry uses them as lever
+        // arms; SwerveDriveState.modulePositionScale converts them if they aren't
+        val modulePosition: Vector2
         val angleOffset: Angle
 
         // encoder interface
@@ -61,7 +74,9 @@ interface SwerveDrive {
     }
 
     companion object {
+        @Deprecated("Input damping is tracked per drive in SwerveDrive.state and no longer reads this")
         var prevTranslationInput = Vector2(0.0,0.0)
+        @Deprecated("Input damping is tracked per drive in SwerveDrive.state and no longer reads this")
         var prevTurn = 0.0
     }
 
@@ -74,22 +89,110 @@ interface SwerveDrive {
     }
 }
 
+/**
+ * The estimator which fuses absolute measurements, such as vision, into this drive's odometry.
+ */
+val SwerveDrive.poseEstimator: SwervePoseEstimator
+    get() {
+        val state = this.state
+        val odometry = state.odometryFor(modules)
+        return state.estimator ?: SwervePoseEstimator(state, odometry).also { state.estimator = it }
+    }
+
+/**
+ * Corrects odometry with an absolute pose measurement captured at [time], such as from vision.
+ *
+ * @see SwervePoseEstimator.addMeasurement
+ */
+fun SwerveDrive.addVisionMeasurement(
+    time: Double,
+    position: Vector2,
+    positionStdDev: Double,
+    heading: Angle? = null,
+    headingStdDev: Angle = 5.0.degrees
+) = poseEstimator.addMeasurement(time, position.x, position.y, positionStdDev, heading, headingStdDev)
+
+/**
+ * The gyro [heading][SwerveDrive.heading] with the vision corrections odometry has applied on top of it, which is the
+ * heading of the recorded poses. Field-centric driving and the path followers steer by it.
+ */
+val SwerveDrive.fieldHeading: Angle
+    get() = heading + state.headingOffset.degrees
+
 val SwerveDrive.pose: SwerveDrive.Pose
-    get() = SwerveDrive.Pose(position, heading)
+    get() {
+        val sample = PoseHistory.Sample()
+        if (!latestPose(sample)) return SwerveDrive.Pose(Vector2(position.x, position.y), fieldHeading)
+        return SwerveDrive.Pose(Vector2(sample.x, sample.y), sample.heading)
+    }
+
+fun SwerveDrive.lookupPose(time: Double): SwerveDrive.Pose {
+    val sample = PoseHistory.Sample()
+    lookupPose(time, sample)
+    return SwerveDrive.Pose(Vector2(sample.x, sample.y), sample.heading)
+}
 
-fun SwerveDrive.lookupPose(time: Double): SwerveDrive.Pose = poseHistory.getInterpolated(InterpolatingDouble(time))
+/**
+ * Interpolates the recorded pose at [time] into [out] without allocating.
+ *
+ * @return false if no odometry has been recorded yet
+ */
+fun SwerveDrive.lookupPose(time: Double, out: PoseHistory.Sample): Boolean = state.poseHistory.lookup(time, out)
+
+/**
+ * Copies the newest recorded pose into [out] without locking, which is safe while odometry runs on its own thread.
+ *
+ * @return false if no odometry has been recorded yet
+ */
+fun SwerveDrive.latestPose(out: PoseHistory.Sample): Boolean = state.poseHistory.latest(out)
+
+// the newest odometry pose, recording one first if odometry is recorded by drive and hasn't been yet
+internal fun SwerveDrive.readPose(out: PoseHistory.Sample) {
+    if (!latestPose(out) && !isOdometryRunning) {
+        recordOdometry()
+        latestPose(out)
+    }
+}
+
+/**
+ * Records odometry [rate] times per second on a dedicated thread, instead of on each call to [drive]. Position is
+ * then integrated even while [drive] is not being called, such as during [steerToAngle].
+ */
+fun SwerveDrive.startOdometry(rate: Double = 200.0) {
+    val state = this.state
+    val service = state.odometryService ?: OdometryService { recordOdometry() }.also { state.odometryService = it }
+    service.start(rate)
+}
+
+/**
+ * Stops the odometry thread started by [startOdometry]; odometry is recorded on each call to [drive] again.
+ */
+fun SwerveDrive.stopOdometry() {
+    state.odometryService?.stop()
+}
+
+val SwerveDrive.isOdometryRunning: Boolean
+    get() = state.odometryService?.isRunning == true
 
 fun SwerveDrive.stop() {
     for (module in modules) {
         module.stop()
     }
+    state.setpointGenerator?.reset()
 }
 
+/**
+ * Zeroes the module encoders and moves odometry to the origin, keeping the heading.
+ *
+ * @throws IllegalStateException if the odometry thread didn't apply the move in time, see [resetOdometry]
+ */
 fun SwerveDrive.zeroEncoders() {
     for (module in modules) {
         module.zeroEncoder()
     }
-    position = Vector2(0.0, 0.0)
+    val state = this.state
+    state.requestReset(0.0, 0.0, Double.NaN)
+    applyReset(state)
 }
 
 
@@ -98,39 +201,49 @@ fun SwerveDrive.drive(
     turn: Double,
     fieldCentric: Boolean = true,
     teleopClosedLoopHeading: Boolean = false,
-    softTranslation: Vector2 = Vector2(0.0, 0.0),
+    softTranslation: Vector2 = noSoftTranslation,
     softTurn: Double = 0.0,
     inputDamping: Double = 1.0)
 {
-    recordOdometry()
+    if (!isOdometryRunning) recordOdometry()
 
-    var adjustedTranslation = translation
+    val state = this.state
+    refreshSnapshots(state)
+    val prevTranslationInput = state.prevTranslationInput
 
-    adjustedTranslation = prevTranslationInput + (adjustedTranslation - prevTranslationInput) * inputDamping
-    prevTranslationInput = adjustedTranslation
+    // kept in primitives from here on so that a drive call allocates nothing
+    var translationX = prevTranslationInput.x + (translation.x - prevTranslationInput.x) * inputDamping
+    var translationY = prevTranslationInput.y + (translation.y - prevTranslationInput.y) * inputDamping
+    prevTranslationInput.set(translationX, translationY)
 
     if (fieldCentric) {
-        adjustedTranslation = adjustedTranslation.rotateDegrees(heading.asDegrees)
+        val radians = Math.toRadians(fieldHeading.asDegrees)
+        val c = Math.cos(radians)
+        val s = Math.sin(radians)
+        val rotatedX = translationX * c - translationY * s
+        translationY = translationX * s + translationY * c
+        translationX = rotatedX
     }
-    adjustedTranslation += softTranslation
+    translationX += softTranslation.x
+    translationY += softTranslation.y
 
     var totalTurn = turn + softTurn
 
     if (inputDamping != 1.0)
-        totalTurn = prevTurn + (totalTurn - prevTurn) * inputDamping
+        totalTurn = state.prevTurn + (totalTurn - state.prevTurn) * inputDamping
 
-    prevTurn = totalTurn
+    state.prevTurn = totalTurn
 
     // consider only doing this if one of the sticks is out of deadband to prevent wheels going in a circle for slight turning
-    if (adjustedTranslation.length > 0.01 && totalTurn.absoluteValue < 0.01) {
+    if (Math.sqrt(translationX * translationX + translationY * translationY) > 0.01 && totalTurn.absoluteValue < 0.01) {
         if (teleopClosedLoopHeading) {  // closed loop on heading position
             // heading error
             val headingError = (headingSetpoint - heading).wrap()
             //println("Heading Error: $headingError.")
 
             // heading d
-            val deltaHeadingError = headingError - prevHeadingError
-            prevHeadingError = headingError
+            val deltaHeadingError = headingError - state.prevHeadingError
+            state.prevHeadingError = headingError
 
             totalTurn = headingError.asDegrees * parameters.kpHeading * 0.60 + deltaHeadingError.asDegrees * parameters.kdHeading
         } else if (parameters.gyroRateCorrection > 0.0) {  // closed loop on heading velocity
@@ -140,23 +253,21 @@ fun SwerveDrive.drive(
         headingSetpoint = heading
     }
 
-    if (adjustedTranslation.x == 0.0 && adjustedTranslation.y == 0.0 && totalTurn == 0.0) {
+    // with a setpoint generator, ramp down to a stop rather than stopping at once
+    val generator = state.setpointGenerator
+    if (translationX == 0.0 && translationY == 0.0 && totalTurn == 0.0 && (generator == null || generator.isStopped)) {
         return stop()
     }
 
    // totalTurn += (totalTurn * 300.0 - headingRate.changePerSecond.asDegrees) * parameters.gyroRateCorrection //problem?
 
-    val speeds = Array(modules.size) { 0.0 }
-
-    for (i in 0 until modules.size) {
-        speeds[i] = modules[i].calculateAngleReturnSpeed(adjustedTranslation, totalTurn, robotPivot)
-    }
-
-    val maxSpeed = speeds.maxBy(Math::abs)!!
-    if (maxSpeed > 1.0) {
-        for (i in 0 until speeds.size) {
-            speeds[i] /= maxSpeed
-        }
+    val speeds = if (generator != null) {
+        generator.calculate(translationX, translationY, totalTurn, robotPivot.x, robotPivot.y, state.clock.time)
+        generator.speeds
+    } else {
+        val kinematics = state.kinematicsFor(modules)
+        kinematics.calculate(modules, translationX, translationY, totalTurn, robotPivot.x, robotPivot.y)
+        kinematics.speeds
     }
 
     for (i in 0 until modules.size) {
@@ -166,23 +277,6 @@ fun SwerveDrive.drive(
     //println()
 }
 
-private fun SwerveDrive.Module.calculateAngleReturnSpeed(
-    translation: Vector2,
-    turn: Double,
-    robotPivot: Vector2
-): Double {
-    val localGoal = translation + (modulePosition - robotPivot).perpendicular().normalize() * turn
-    var power = localGoal.length
-    var setPoint = localGoal.angle.radians
-    val angleError = (setPoint - angle).wrap()
-    if (Math.abs(angleError.asRadians) > Math.PI / 2.0) {
-        setPoint -= Math.PI.radians
-        power = -power
-    }
-    angleSetpoint = setPoint
-    return power * Math.abs(angleError.cos())
-}
-
 suspend fun SwerveDrive.Module.steerToAngle(angle: Angle, tolerance: Angle = 2.degrees) {
     try {
         periodic(watchOverrun = false) {
@@ -208,113 +302,144 @@ fun SwerveDrive.Module.recordOdometry(heading: Angle): Vector2 {
     )
 }
 
+/**
+ * Integrates the module encoders and records the pose history, which may be read from any thread with [latestPose]
+ * and [lookupPose]. Odometry must only be recorded from one thread at a time, which is the odometry thread once
+ * [startOdometry] has been called, and it is the only writer of the odometry pose: resets and vision corrections
+ * from other threads are handed to it and applied here.
+ *
+ * @see SwerveOdometry
+ */
 fun SwerveDrive.recordOdometry() {
-    var translation = Vector2(0.0, 0.0)
-
-    val translations: Array<Vector2> = Array(modules.size) { Vector2(0.0, 0.0) }
-    for (i in 0 until modules.size) {
-        translations[i] = modules[i].recordOdometry(heading)
+    // sample the time with the encoders, so the pose history lines up with when they were read
+    val state = this.state
+    val time = state.clock.time
+    val odometry = state.odometryFor(modules)
+
+    if (state.claimReset()) {
+        // take the current encoder distances as the starting point, so a reset isn't seen as motion
+        for (module in modules) {
+            module.prevDistance = module.currDistance
+        }
+        if (!state.resetHeading.isNaN()) {
+            heading = state.resetHeading.degrees
+            state.headingOffset = 0.0
+        }
+        odometry.reset()
+        state.odometryX = state.resetX
+        state.odometryY = state.resetY
+        state.velocityX = 0.0
+        state.velocityY = 0.0
+        state.prevOdometryTime = time
+        state.poseHistory.clear()
+        state.estimator?.reset()
+        state.finishReset()
     }
 
-    for (i in 0 until modules.size) {
-        translation += translations[i]
+    // vision corrections move the pose, its history and the heading offset before the update is integrated on top
+    state.estimator?.applyCorrection()
+
+    val currentHeading = heading + state.headingOffset.degrees
+    odometry.update(currentHeading)
+
+    val x = state.odometryX + odometry.deltaX
+    val y = state.odometryY + odometry.deltaY
+    state.odometryX = x
+    state.odometryY = y
+    val deltaTime = time - state.prevOdometryTime
+    if (deltaTime > 0.0) {
+        state.velocityX = odometry.deltaX / deltaTime
+        state.velocityY = odometry.deltaY / deltaTime
     }
-    translation /= modules.size.toDouble()
 
-    position += translation
-    val time = Timer.getFPGATimestamp()
-    val deltaTime = time - prevTime
-    velocity = (position - prevPosition) / deltaTime
+    state.poseHistory.record(time, x, y, currentHeading)
+    state.prevOdometryTime = time
+}
 
-    poseHistory[InterpolatingDouble(time)] = pose
-    prevTime = time
-    prevPosition = position
-//    println("Position: $position")
+/**
+ * Moves odometry to [position] and the gyro to [heading].
+ *
+ * The reset is handed to the odometry writer, which takes the current encoder readings as its starting point, so it
+ * never races an update. While odometry runs on its own thread this waits up to 100 ms for the reset to be applied,
+ * which normally takes one odometry update.
+ *
+ * @throws IllegalStateException if the odometry thread didn't start the reset in time, in which case it is cancelled
+ * and the pose is left as it was
+ */
+fun SwerveDrive.resetOdometry(position: Vector2 = Vector2(0.0, 0.0), heading: Angle = 0.0.degrees) {
+    val state = this.state
+    state.requestReset(position.x, position.y, heading.asDegrees)
+    applyReset(state)
 }
 
-fun SwerveDrive.resetOdometry() {
-    for (module in modules) {
-        module.prevDistance = 0.0
+private fun SwerveDrive.applyReset(state: SwerveDriveState) {
+    if (isOdometryRunning) {
+        check(state.awaitReset()) {
+            "Odometry didn't apply the reset in time, so it was cancelled"
+        }
+    } else {
+        recordOdometry()
     }
-    zeroEncoders()
-    position = Vector2(0.0, 0.0)
-    heading = ((0.0).degrees)
+    refreshSnapshots(state)
+}
+
+// refreshes the position and velocity snapshots on the control thread, in place, so driving allocates nothing
+private fun SwerveDrive.refreshSnapshots(state: SwerveDriveState) {
+    val pose = state.snapshot
+    if (!state.poseHistory.latest(pose)) return
+
+    val position = state.positionSnapshot
+    val velocity = state.velocitySnapshot
+    position.set(pose.x, pose.y)
+    velocity.set(state.velocityX, state.velocityY)
+    // a vector set from outside is replaced once, rather than written into
+    if (this.position !== position) this.position = position
+    if (this.velocity !== velocity) this.velocity = velocity
 }
 
+/**
+ * Follows [path] with a [SwervePathFollower], using the PD gains in [SwerveDrive.parameters], or the model-based
+ * [lqr] gains if given.
+ *
+ * @param maxLead how far along the path the setpoint may get ahead of a blocked or slipping robot, see [PathProgress]
+ * @param timeout how long a robot held back by [maxLead] may run past the end of the path before giving up on it
+ */
 suspend fun SwerveDrive.driveAlongPath(
     path: Path2D,
     resetOdometry: Boolean = false,
-    extraTime: Double = 0.0
+    extraTime: Double = 0.0,
+    lqr: SwerveLqr? = null,
+    maxLead: Double = Double.POSITIVE_INFINITY,
+    timeout: Double = 2.0
 ) {
     println("Driving along path ${path.name}, duration: ${path.durationWithSpeed}, travel direction: ${path.robotDirection}, mirrored: ${path.isMirrored}")
 
     if (resetOdometry) {
         println("Position = $position Heading = $heading")
-        resetOdometry()
 
         // set to the numbers required for the start of the path
-        position = path.getPosition(0.0)
-        heading = path.headingCurve.getValue(0.0).degrees
+        var startHeading = path.headingCurve.getValue(0.0).degrees
         if(parameters.alignRobotToPath) {
-            heading += path.getTangent(0.0).angle.degrees
+            startHeading += path.getTangent(0.0).angle.degrees
         }
+        resetOdometry(path.getPosition(0.0), startHeading)
         println("After Reset Position = $position Heading = $heading")
     }
-    var prevTime = 0.0
-
-    val timer = Timer()
-    timer.start()
-    prevPathPosition = path.getPosition(0.0)
-    prevPathHeading = path.getAbsoluteHeadingDegreesAt(0.0).degrees
-    var prevPositionError = Vector2(0.0, 0.0)
-    prevHeadingError = 0.0.degrees
-    periodic {
-        val t = timer.get()
-        val dt = t - prevTime
-
-        // position error
-        val pathPosition = path.getPosition(t)
-        val positionError = pathPosition - position
-        //println("time=$t   pathPosition=$pathPosition position=$position positionError=$positionError")
-
-        // position feed forward
-        val pathVelocity = (pathPosition - prevPathPosition) / dt
-        prevPathPosition = pathPosition
-
-        // position d
-        val deltaPositionError = positionError - prevPositionError
-        prevPositionError = positionError
-
-        val translationControlField =
-            pathVelocity * parameters.kPositionFeedForward + positionError * parameters.kpPosition + deltaPositionError * parameters.kdPosition
-
-        // heading error
-        val robotHeading = heading
-        val pathHeading = path.getAbsoluteHeadingDegreesAt(t).degrees
-        val headingError = (pathHeading - robotHeading).wrap()
-        //println("Heading Error: $headingError. Hi. %%%%%%%%%%%%%%%%%%%%%%%%%%")
-
-        // heading feed forward
-        val headingVelocity = (pathHeading.asDegrees - prevPathHeading.asDegrees) / dt
-        prevPathHeading = pathHeading
-
-        // heading d
-        val deltaHeadingError = headingError - prevHeadingError
-        prevHeadingError = headingError
-
-        val turnControl = headingVelocity * parameters.kHeadingFeedForward + headingError.asDegrees * parameters.kpHeading + deltaHeadingError.asDegrees * parameters.kdHeading
-
-        // send it
-        drive(translationControlField, turnControl, true)
-
-        // are we done yet?
-        if (t >= path.durationWithSpeed + extraTime)
-            stop()
-
-        prevTime = t
+    val follower = SwervePathFollower(this, path, extraTime, lqr)
+    follower.progress.maxLead = maxLead
+    follower.timeout = timeout
+    follow(follower)
+}
 
-//        println("Time=$t Path Position=$pathPosition Position=$position")
-//        println("DT$dt Path Velocity = $pathVelocity Velocity = $velocity")
+/**
+ * Drives with [follower] until it finishes, against the coroutine's clock, at the period of its gain schedule if it
+ * has one. Keep a reference to the follower to [replan][SwervePathFollower.replan] it while it runs.
+ */
+suspend fun SwerveDrive.follow(follower: SwervePathFollower) {
+    val clock = coroutineContext.clock
+    val startTime = clock.time
+    periodic(follower.schedule?.period ?: 0.02) {
+        if (follower.update(clock.time - startTime)) stop()
     }
 
     // shut it down
@@ -333,50 +458,45 @@ suspend fun SwerveDrive.driveAlongPathWithStrafe(
     println("Driving along path ${path.name}, duration: ${path.durationWithSpeed}, travel direction: ${path.robotDirection}, mirrored: ${path.isMirrored}")
     if (resetOdometry) {
         println("Position = $position Heading = $heading")
-        resetOdometry()
 
         // set to the numbers required for the start of the path
-        position = path.getPosition(0.0)
-        heading = path.getTangent(0.0).angle.degrees + path.headingCurve.getValue(0.0).degrees
+        resetOdometry(path.getPosition(0.0), path.getTangent(0.0).angle.degrees + path.headingCurve.getValue(0.0).degrees)
         println("After Reset Position = $position Heading = $heading")
     }
-    var prevTime = 0.0
-
-    val timer = Timer()
-    timer.start()
-    prevPathPosition = path.getPosition(0.0)
-    prevPathHeading = path.getAbsoluteHeadingDegreesAt(0.0).degrees
-    periodic {
-        val t = timer.get()
-        val dt = t - prevTime
 
+    // velocities and heading rates come from the baked trajectory, so there is nothing to difference between loops
+    val trajectory = PathTrajectory(path)
+    val setpoint = PathTrajectory.Sample()
+    val pose = PoseHistory.Sample()
+    val translationControlRobot = Vector2(0.0, 0.0)
 
-        // position error
-        val pathPosition = path.getPosition(t)
-        val positionError = pathPosition - position
-        //println("pathPosition=$pathPosition position=$position positionError=$positionError")
-
-        // position feed forward
-        val pathVelocity = (pathPosition - prevPathPosition) / dt
-        prevPathPosition = pathPosition
-
-        val translationControlField =
-            pathVelocity * parameters.kPositionFeedForward + positionError * parameters.kpPosition
-
-        // heading error
-        val robotHeading = heading
-        val pathHeading = path.getAbsoluteHeadingDegreesAt(t).degrees
-        val headingError = (pathHeading - robotHeading).wrap()
-
-        // heading feed forward
-        val headingVelocity = (pathHeading.asDegrees - prevPathHeading.asDegrees) / dt
-        prevPathHeading = pathHeading
-
+    val clock = coroutineContext.clock
+    val startTime = clock.time
+    periodic {
+        val t = clock.time - startTime
+        trajectory.sample(t, setpoint)
+
+        // position error, and velocity feed forward
+        readPose(pose)
+        val translationControlX =
+            setpoint.velocityX * parameters.kPositionFeedForward + (setpoint.x - pose.x) * parameters.kpPosition
+        val translationControlY =
+            setpoint.velocityY * parameters.kPositionFeedForward + (setpoint.y - pose.y) * parameters.kpPosition
+
+        // heading error, and heading feed forward
+        val headingError = Math.IEEEremainder(setpoint.heading - fieldHeading.asDegrees, 360.0)
         var turnControl =
-            headingVelocity * parameters.kHeadingFeedForward + headingError.asDegrees * parameters.kpHeading
-
-        val heading = (heading + (headingRate * parameters.gyroRateCorrection).changePerSecond).wrap()
-        var translationControlRobot = translationControlField.rotateDegrees(heading.asDegrees)
+            setpoint.headingRate * parameters.kHeadingFeedForward + headingError * parameters.kpHeading
+
+        // into robot coordinates at the heading the gyro rate predicts
+        val predictedHeading = fieldHeading.asDegrees + headingRate.changePerSecond.asDegrees * parameters.gyroRateCorrection
+        val radians = Math.toRadians(predictedHeading)
+        val c = cos(radians)
+        val s = sin(radians)
+        translationControlRobot.set(
+            translationControlX * c - translationControlY * s,
+            translationControlX * s + translationControlY * c
+        )
 
         val alpha = strafeAlpha(t)
         if (alpha > 0.0) {
@@ -388,17 +508,12 @@ suspend fun SwerveDrive.driveAlongPathWithStrafe(
         drive(translationControlRobot, turnControl, false)
 
         // are we done yet?
-        if (t >= path.durationWithSpeed + extraTime)
+        if (t >= trajectory.duration + extraTime)
             stop()
 
         if (earlyExit()) {
             stop()
         }
-
-        prevTime = t
-
-//        println("Time=$t Path Position=$pathPosition Position=$position")
-//        println("DT$dt Path Velocity = $pathVelocity Velocity = $velocity")
     }
 
     // shut it down
@@ -412,13 +527,15 @@ suspend fun SwerveDrive.tuneDrivePositionController(controller: org.team2471.frc
     var prevPositionError = Vector2(0.0, 0.0)
     var prevHeadingError = 0.0.degrees
 
-    val timer = Timer().apply { start() }
+    val clock = coroutineContext.clock
+    val startTime = clock.time
 
     var angleErrorAccum = 0.0.degrees
+    val pose = PoseHistory.Sample()
     try {
         resetOdometry()
         periodic {
-            val t = timer.get()
+            val t = clock.time - startTime
             val dt = t - prevTime
 
             val x = controller.leftThumbstickX
@@ -427,7 +544,8 @@ suspend fun SwerveDrive.tuneDrivePositionController(controller: org.team2471.frc
 
             // position error
             val pathPosition = Vector2(x, y)
-            val positionError = pathPosition - position
+            readPose(pose)
+            val positionError = Vector2(pathPosition.x - pose.x, pathPosition.y - pose.y)
 
             // position d
             val deltaPositionError = positionError - prevPositionError
@@ -436,7 +554,7 @@ suspend fun SwerveDrive.tuneDrivePositionController(controller: org.team2471.frc
             val translationControlField = positionError * parameters.kpPosition + deltaPositionError * parameters.kdPosition
 
             // heading error
-            val robotHeading = heading.asDegrees
+            val robotHeading = fieldHeading.asDegrees
             val pathHeading = turn.degrees
             val headingError = (pathHeading - robotHeading.degrees).wrap()
 //            println("Heading Error: $headingError. Hi.")
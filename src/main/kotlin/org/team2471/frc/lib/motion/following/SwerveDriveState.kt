@@ -0,0 +1,192 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.coroutines.Clock
+import org.team2471.frc.lib.coroutines.FpgaClock
+import org.team2471.frc.lib.math.Vector2
+import org.team2471.frc.lib.units.degrees
+import java.lang.ref.WeakReference
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * The odometry, input filtering and follower state of one [SwerveDrive].
+ *
+ * Each drive owns its state, so two drives, such as a simulated drive next to the real one, never share odometry or
+ * filtered inputs, and separate drives can be driven from separate threads.
+ *
+ * @param clock the time source odometry is stamped with
+ * @see SwerveDrive.state
+ */
+class SwerveDriveState(val clock: Clock = FpgaClock) {
+    internal val poseHistory = PoseHistory(75)
+
+    private var kinematics = SwerveKinematics(0)
+    private var odometry: SwerveOdometry? = null
+    private var odometryModules: Array<SwerveDrive.Module>? = null
+    private var odometryScale = 1.0
+
+    internal var odometryService: OdometryService? = null
+
+    /**
+     * Multiplies the module positions into the units of the module distances for odometry, which uses them as lever
+     * arms, such as `1.0 / 12.0` for positions in inches and distances in feet. Set it before odometry starts.
+     *
+     * @see SwerveOdometry.positionScale
+     */
+    var modulePositionScale = 1.0
+
+    /**
+     * Limits module steering and acceleration in [drive] when set, rather than jumping straight to each command.
+     */
+    var setpointGenerator: SwerveSetpointGenerator? = null
+
+    @Volatile
+    internal var estimator: SwervePoseEstimator? = null
+
+    // written only by the odometry writer
+    internal var odometryX = 0.0
+    internal var odometryY = 0.0
+    internal var prevOdometryTime = 0.0
+
+    // a reset requested by another thread, applied by the odometry writer on its next update
+    internal var resetX = 0.0
+    internal var resetY = 0.0
+    internal var resetHeading = 0.0 // degrees
+
+    // the odometry writer claims a pending reset before applying it, so a waiter which gives up can still cancel it
+    private val resetStatus = AtomicInteger(RESET_NONE)
+
+    /**
+     * The heading corrections from vision so far, in degrees, which odometry adds to the gyro reading rather than
+     * writing them to the gyro. Written only by the odometry writer, and cleared when a reset sets the gyro.
+     *
+     * @see SwerveDrive.fieldHeading
+     */
+    @Volatile
+    var headingOffset = 0.0
+        internal set
+
+    /**
+     * The field-relative velocity from the last odometry update, in distance per second.
+     */
+    @Volatile
+    var velocityX = 0.0
+        internal set
+    @Volatile
+    var velocityY = 0.0
+        internal set
+
+    // scratch pose for refreshing the position and velocity snapshots, and the snapshots themselves, which are
+    // updated in place; used only by the control thread
+    internal val snapshot = PoseHistory.Sample()
+    internal val positionSnapshot = Vector2(0.0, 0.0)
+    internal val velocitySnapshot = Vector2(0.0, 0.0)
+
+    // input damping and teleop heading control
+    internal val prevTranslationInput = Vector2(0.0, 0.0)
+    internal var prevTurn = 0.0
+    internal var prevHeadingError = 0.0.degrees
+
+    internal fun requestReset(x: Double, y: Double, heading: Double) {
+        resetX = x
+        resetY = y
+        resetHeading = heading
+        resetStatus.set(RESET_PENDING)
+    }
+
+    // called by the odometry writer, true if it now owns a requested reset and must apply it, then finish it
+    internal fun claimReset() = resetStatus.compareAndSet(RESET_PENDING, RESET_APPLYING)
+
+    // leaves a reset requested while this one was applied pending, for the next update
+    internal fun finishReset() {
+        resetStatus.compareAndSet(RESET_APPLYING, RESET_NONE)
+    }
+
+    /**
+     * Waits up to [RESET_TIMEOUT_NANOS] for the odometry thread to apply a requested reset. A reset it hasn't started
+     * by then is cancelled, so a stalled odometry thread can't apply it later.
+     *
+     * @return false if the reset was cancelled
+     */
+    internal fun awaitReset(): Boolean {
+        val deadline = System.nanoTime() + RESET_TIMEOUT_NANOS
+        while (System.nanoTime() < deadline) {
+            if (resetStatus.get() == RESET_NONE) return true
+            LockSupport.parkNanos(RESET_POLL_NANOS)
+        }
+        if (resetStatus.compareAndSet(RESET_PENDING, RESET_NONE)) return false
+
+        // already being applied, which doesn't wait on anything
+        while (resetStatus.get() == RESET_APPLYING) {
+            LockSupport.parkNanos(RESET_POLL_NANOS)
+        }
+        return true
+    }
+
+    internal fun kinematicsFor(modules: Array<SwerveDrive.Module>): SwerveKinematics {
+        if (kinematics.moduleCount != modules.size) kinematics = SwerveKinematics(modules.size)
+        return kinematics
+    }
+
+    // rebuilt only when the modules themselves change, not when a drive returns them in a new array
+    internal fun odometryFor(modules: Array<SwerveDrive.Module>): SwerveOdometry {
+        val current = odometryModules
+        val scale = modulePositionScale
+        if (current !== modules && !hasSameModules(current, modules) || odometryScale != scale) {
+            odometry = SwerveOdometry(modules, scale)
+            odometryModules = modules
+            odometryScale = scale
+            estimator = null
+        }
+        return odometry!!
+    }
+
+    private fun hasSameModules(current: Array<SwerveDrive.Module>?, modules: Array<SwerveDrive.Module>): Boolean {
+        if (current == null || current.size != modules.size) return false
+        for (i in modules.indices) {
+            if (current[i] !== modules[i]) return false
+        }
+        return true
+    }
+
+    internal companion object {
+        private const val RESET_TIMEOUT_NANOS = 100_000_000L
+        private const val RESET_NONE = 0
+        private const val RESET_PENDING = 1
+        private const val RESET_APPLYING = 2
+        private const val RESET_POLL_NANOS = 100_000L
+
+        // drives are matched by identity, whatever their equals, and held weakly so a discarded drive's state goes too
+        private class Entry(drive: SwerveDrive, val state: SwerveDriveState) {
+            val drive = WeakReference(drive)
+        }
+
+        private val entries = ArrayList<Entry>()
+
+        // the last drive looked up, so that the usual single drive is found without locking
+        @Volatile
+        private var recent: Entry? = null
+
+        fun of(drive: SwerveDrive): SwerveDriveState {
+            val cached = recent
+            if (cached != null && cached.drive.get() === drive) return cached.state
+
+            return synchronized(entries) {
+                var found: Entry? = null
+                var i = 0
+                while (i < entries.size) {
+                    val referent = entries[i].drive.get()
+                    if (referent == null) {
+                        entries.removeAt(i)
+                        continue
+                    }
+                    if (referent === drive) found = entries[i]
+                    i++
+                }
+                val entry = found ?: Entry(drive, SwerveDriveState()).also { entries.add(it) }
+                recent = entry
+                entry.state
+            }
+        }
+    }
+}
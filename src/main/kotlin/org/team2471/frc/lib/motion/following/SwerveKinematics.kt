@@ -0,0 +1,80 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.units.Angle
+import org.team2471.frc.lib.units.asRadians
+import kotlin.math.abs
+import kotlin.math.atan2
+import kotlin.math.sqrt
+
+/**
+ * Converts robot-relative translation and turn commands into module setpoints.
+ *
+ * All intermediate values are kept in preallocated primitive arrays so that the 50 Hz drive loop produces no
+ * garbage.
+ *
+ * @see SwerveOdometry for the reverse direction
+ */
+class SwerveKinematics(val moduleCount: Int) {
+    /**
+     * The drive power of each module from the last call to [calculate].
+     */
+    val speeds = DoubleArray(moduleCount)
+
+    /**
+     * Sets the angle setpoint of each module and fills [speeds] with the drive powers, desaturated so that no power
+     * exceeds 1.
+     */
+    fun calculate(
+        modules: Array<SwerveDrive.Module>,
+        translationX: Double,
+        translationY: Double,
+        turn: Double,
+        pivotX: Double,
+        pivotY: Double
+    ) {
+        for (i in 0 until moduleCount) {
+            speeds[i] = modules[i].calculateAngleReturnSpeed(translationX, translationY, turn, pivotX, pivotY)
+        }
+
+        // the speed of greatest magnitude, first one wins on ties
+        var maxSpeed = speeds[0]
+        for (i in 1 until moduleCount) {
+            if (abs(maxSpeed) < abs(speeds[i])) maxSpeed = speeds[i]
+        }
+        if (maxSpeed > 1.0) {
+            for (i in 0 until moduleCount) {
+                speeds[i] /= maxSpeed
+            }
+        }
+    }
+
+    private fun SwerveDrive.Module.calculateAngleReturnSpeed(
+        translationX: Double,
+        translationY: Double,
+        turn: Double,
+        pivotX: Double,
+        pivotY: Double
+    ): Double {
+        // the turn contribution is perpendicular to the line from the pivot to the module
+        val perpendicularX = modulePosition.y - pivotY
+        val perpendicularY = -(modulePosition.x - pivotX)
+        val length = sqrt(perpendicularX * perpendicularX + perpendicularY * perpendicularY)
+        val goalX = translationX + perpendicularX / length * turn
+        val goalY = translationY + perpendicularY / length * turn
+
+        var power = sqrt(goalX * goalX + goalY * goalY)
+        // Number.radians would box, so build the angles directly
+        var setPoint = Angle(Math.toDegrees(atan2(goalX, goalY)))
+        val angleError = (setPoint - angle).wrap()
+        if (abs(angleError.asRadians) > Math.PI / 2.0) {
+            setPoint -= HALF_TURN
+            power = -power
+        }
+        angleSetpoint = setPoint
+        return power * abs(angleError.cos())
+    }
+
+    private companion object {
+        val HALF_TURN = Angle(Math.toDegrees(Math.PI))
+    }
+}
@@ -0,0 +1,100 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.control.LinearQuadraticRegulator
+import kotlin.math.exp
+
+/**
+ * Model-based gains for [SwervePathFollower], from a finite-horizon linear-quadratic regulator, as an alternative to
+ * the hand-tuned PD gains in the drive's parameters.
+ *
+ * Each field axis is modeled as a drive whose velocity follows power with a first-order lag, and heading likewise
+ * with turn power. The feed-forward inverts that model from the trajectory's velocity and acceleration, and the
+ * regulator corrects position and velocity error together, weighting each error by the inverse square of its
+ * tolerance. The model doesn't change along a path, so the receding-horizon gains are solved once here, and a
+ * follower tick costs a few multiplications.
+ *
+ * @param maxSpeed the robot's speed at full drive power, in distance per second
+ * @param driveTimeConstant the time for the robot's speed to cover 63% of a change in power
+ * @param maxTurnRate the robot's turn rate at full turn power, in degrees per second
+ * @param turnTimeConstant the time for the turn rate to cover 63% of a change in turn power
+ * @param period the follower's loop period
+ * @param horizon how far ahead the regulator looks, in seconds
+ */
+class SwerveLqr(
+    val maxSpeed: Double,
+    val driveTimeConstant: Double,
+    val maxTurnRate: Double,
+    val turnTimeConstant: Double,
+    val period: Double = 0.02,
+    horizon: Double = 1.0,
+    positionTolerance: Double = 0.1,
+    velocityTolerance: Double = 1.0,
+    headingTolerance: Double = 2.0,
+    headingRateTolerance: Double = 30.0
+) {
+    /**
+     * Translation power per unit of position error.
+     */
+    val kPosition: Double
+
+    /**
+     * Translation power per unit per second of velocity error.
+     */
+    val kVelocity: Double
+
+    /**
+     * Turn power per degree of heading error.
+     */
+    val kHeading: Double
+
+    /**
+     * Turn power per degree per second of heading rate error.
+     */
+    val kHeadingRate: Double
+
+    init {
+        require(maxSpeed > 0.0 && maxTurnRate > 0.0) { "The maximum speed and turn rate must be positive" }
+        require(period > 0.0 && horizon >= period) { "The horizon must cover at least one period" }
+
+        val steps = Math.round(horizon / period).toInt()
+        val regulator = LinearQuadraticRegulator(2, 1)
+
+        lagModel(regulator, maxSpeed, driveTimeConstant)
+        regulator.setDiagonal(regulator.q, bryson(positionTolerance), bryson(velocityTolerance))
+        regulator.r[0] = 1.0
+        regulator.solve(steps)
+        kPosition = regulator.gain[0]
+        kVelocity = regulator.gain[1]
+
+        lagModel(regulator, maxTurnRate, turnTimeConstant)
+        regulator.setDiagonal(regulator.q, bryson(headingTolerance), bryson(headingRateTolerance))
+        regulator.solve(steps)
+        kHeading = regulator.gain[0]
+        kHeadingRate = regulator.gain[1]
+    }
+
+    /**
+     * The drive power which holds a trajectory's [velocity] and [acceleration] along one axis.
+     */
+    fun translationFeedForward(velocity: Double, acceleration: Double) =
+        (velocity + driveTimeConstant * acceleration) / maxSpeed
+
+    /**
+     * The turn power which holds a trajectory's heading [rate], in degrees per second.
+     */
+    fun turnFeedForward(rate: Double) = rate / maxTurnRate
+
+    // position and velocity of a velocity which lags gain * power, discretized exactly over the period
+    private fun lagModel(regulator: LinearQuadraticRegulator, gain: Double, timeConstant: Double) {
+        val tau = Math.max(timeConstant, 1e-4)
+        val decay = exp(-period / tau)
+        regulator.a[0] = 1.0
+        regulator.a[1] = tau * (1.0 - decay)
+        regulator.a[2] = 0.0
+        regulator.a[3] = decay
+        regulator.b[0] = gain * (period - tau * (1.0 - decay))
+        regulator.b[1] = gain * (1.0 - decay)
+    }
+
+    private fun bryson(tolerance: Double) = 1.0 / (tolerance * tolerance)
+}
@@ -0,0 +1,222 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.units.Angle
+import org.team2471.frc.lib.units.asRadians
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.hypot
+import kotlin.math.sin
+
+/**
+ * Swerve odometry which fits one rigid-body motion to all of the modules and integrates it along an arc.
+ *
+ * Each update reads how far every module has rolled since the last update, and finds the robot-relative translation
+ * (and optionally rotation) that best explains them in a least-squares sense. A module which disagrees with the
+ * others by more than [slipRatio] of the average module travel is treated as slipping and left out of the fit. The
+ * fitted motion is then integrated assuming a constant twist over the update, rather than a straight line in the
+ * starting heading, so fast turns don't accumulate error between samples.
+ *
+ * Module positions are the lever arms of the robot's rotation, so they must be in the units of the encoder distances;
+ * [positionScale] converts them when they aren't. With mismatched units every module would seem to slip whenever the
+ * robot turns.
+ *
+ * Everything is kept in preallocated primitive arrays, so updates allocate nothing.
+ *
+ * @param positionScale multiplies [SwerveDrive.Module.modulePosition] into the units of
+ * [SwerveDrive.Module.currDistance], such as `1.0 / 12.0` for positions in inches and distances in feet
+ */
+class SwerveOdometry(private val modules: Array<SwerveDrive.Module>, val positionScale: Double = 1.0) {
+    /**
+     * Whether to take the rotation from the gyro, which is usually better than the modules. If false, the rotation
+     * is fit from the modules along with the translation.
+     */
+    var useGyroRotation = true
+
+    /**
+     * The fit error, as a fraction of the average module travel, beyond which a module is considered slipping.
+     */
+    var slipRatio = 0.5
+
+    /**
+     * Module travel below this distance is treated as this distance when checking for slip, so that noise on a
+     * stopped robot doesn't reject modules. It defaults to half a percent of the modules' average scaled distance
+     * from their centroid, so it follows the units of the distances.
+     */
+    var minSlipDistance: Double
+
+    /**
+     * The field-relative translation from the last [update].
+     */
+    var deltaX = 0.0
+        private set
+    var deltaY = 0.0
+        private set
+
+    /**
+     * The modules left out of the last [update] because they were slipping.
+     */
+    var slippingModuleCount = 0
+        private set
+
+    private val moduleX = DoubleArray(modules.size)
+    private val moduleY = DoubleArray(modules.size)
+    private val deltaModuleX = DoubleArray(modules.size)
+    private val deltaModuleY = DoubleArray(modules.size)
+    private val included = BooleanArray(modules.size)
+
+    private var prevHeadingRadians = 0.0
+    private var hasPrevHeading = false
+
+    // the last fit, robot relative
+    private var fitX = 0.0
+    private var fitY = 0.0
+    private var fitRotation = 0.0
+
+    init {
+        require(positionScale > 0.0 && positionScale.isFinite()) {
+            "The module position scale must be positive, got $positionScale"
+        }
+
+        var sumX = 0.0
+        var sumY = 0.0
+        for (i in modules.indices) {
+            moduleX[i] = modules[i].modulePosition.x * positionScale
+            moduleY[i] = modules[i].modulePosition.y * positionScale
+            sumX += moduleX[i]
+            sumY += moduleY[i]
+        }
+        var sumRadius = 0.0
+        for (i in modules.indices) {
+            sumRadius += hypot(moduleX[i] - sumX / modules.size, moduleY[i] - sumY / modules.size)
+        }
+        minSlipDistance = if (modules.isEmpty()) 0.0 else sumRadius / modules.size * MIN_SLIP_FRACTION
+    }
+
+    /**
+     * Forgets the previous heading, so the next update doesn't see a heading reset as a turn.
+     */
+    fun reset() {
+        hasPrevHeading = false
+    }
+
+    /**
+     * Turns the previous heading by [radians] clockwise, for when the gyro is moved by that much between updates, so
+     * the move isn't seen as a turn but the turn since the last update still is.
+     */
+    fun rotateHeading(radians: Double) {
+        prevHeadingRadians += radians
+    }
+
+    /**
+     * Reads the module encoders and computes the field-relative translation since the last update into [deltaX]
+     * and [deltaY].
+     *
+     * @param heading the current gyro heading
+     */
+    fun update(heading: Angle) {
+        val headingRadians = heading.asRadians
+        if (!hasPrevHeading) {
+            prevHeadingRadians = headingRadians
+            hasPrevHeading = true
+        }
+
+        var totalTravel = 0.0
+        for (i in modules.indices) {
+            val module = modules[i]
+            val angle = module.angle.asRadians
+            val currDistance = module.currDistance
+            val deltaDistance = currDistance - module.prevDistance
+            module.prevDistance = currDistance
+
+            deltaModuleX[i] = deltaDistance * sin(angle)
+            deltaModuleY[i] = deltaDistance * cos(angle)
+            included[i] = true
+            totalTravel += abs(deltaDistance)
+        }
+
+        // heading increases clockwise
+        val gyroRotation = Math.IEEEremainder(headingRadians - prevHeadingRadians, 2.0 * Math.PI)
+        val slipDistance = Math.max(totalTravel / modules.size, minSlipDistance) * slipRatio
+
+        slippingModuleCount = 0
+        fit(gyroRotation)
+        while (modules.size - slippingModuleCount > 2) {
+            var worst = -1
+            var worstError = slipDistance
+            for (i in modules.indices) {
+                if (!included[i]) continue
+                val error = hypot(
+                    deltaModuleX[i] - fitX - fitRotation * moduleY[i],
+                    deltaModuleY[i] - fitY + fitRotation * moduleX[i]
+                )
+                if (error > worstError) {
+                    worst = i
+                    worstError = error
+                }
+            }
+            if (worst < 0) break
+
+            included[worst] = false
+            slippingModuleCount++
+            fit(gyroRotation)
+        }
+
+        integrate(prevHeadingRadians, fitRotation)
+        prevHeadingRadians = headingRadians
+    }
+
+    // least-squares robot-relative motion of the included modules, where a module at (px, py) moves by
+    // (x + rotation * py, y - rotation * px) for a clockwise rotation
+    private fun fit(gyroRotation: Double) {
+        var n = 0
+        var sumX = 0.0
+        var sumY = 0.0
+        var sumSquares = 0.0
+        var sumDeltaX = 0.0
+        var sumDeltaY = 0.0
+        var sumCross = 0.0
+        for (i in modules.indices) {
+            if (!included[i]) continue
+            n++
+            sumX += moduleX[i]
+            sumY += moduleY[i]
+            sumSquares += moduleX[i] * moduleX[i] + moduleY[i] * moduleY[i]
+            sumDeltaX += deltaModuleX[i]
+            sumDeltaY += deltaModuleY[i]
+            sumCross += moduleY[i] * deltaModuleX[i] - moduleX[i] * deltaModuleY[i]
+        }
+
+        fitRotation = if (useGyroRotation) {
+            gyroRotation
+        } else {
+            val spread = sumSquares - (sumX * sumX + sumY * sumY) / n
+            if (spread > 1e-12) (sumCross - (sumY * sumDeltaX - sumX * sumDeltaY) / n) / spread else gyroRotation
+        }
+        fitX = (sumDeltaX - sumY * fitRotation) / n
+        fitY = (sumDeltaY + sumX * fitRotation) / n
+    }
+
+    // integrates the fit assuming the heading turns at a constant rate from [startHeading] by [rotation]
+    private fun integrate(startHeading: Double, rotation: Double) {
+        val sinIntegral: Double
+        val cosIntegral: Double
+        if (abs(rotation) < 1e-9) {
+            val midHeading = startHeading + rotation / 2.0
+            sinIntegral = sin(midHeading)
+            cosIntegral = cos(midHeading)
+        } else {
+            val endHeading = startHeading + rotation
+            sinIntegral = (cos(startHeading) - cos(endHeading)) / rotation
+            cosIntegral = (sin(endHeading) - sin(startHeading)) / rotation
+        }
+
+        // robot to field rotation, matching (d sin(heading + angle), d cos(heading + angle))
+        deltaX = fitX * cosIntegral + fitY * sinIntegral
+        deltaY = -fitX * sinIntegral + fitY * cosIntegral
+    }
+
+    private companion object {
+        // of the average module radius, about 0.005 for a robot with modules a foot from the center, in feet
+        const val MIN_SLIP_FRACTION = 0.005
+    }
+}
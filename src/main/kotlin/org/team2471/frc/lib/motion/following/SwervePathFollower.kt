@@ -0,0 +1,228 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.math.Vector2
+import org.team2471.frc.lib.motion_profiling.Path2D
+import org.team2471.frc.lib.motion_profiling.PathTrajectory
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Drives a [SwerveDrive] along a [Path2D] one step at a time.
+ *
+ * The path is baked into a [PathTrajectory], so the velocity, acceleration and heading rate feed-forwards are read
+ * from the trajectory rather than differenced between loops, and don't depend on how evenly the loop runs.
+ *
+ * [driveAlongPath] calls [update] from a periodic loop against the coroutine's clock; a simulation can also call it
+ * directly with its own time. Setting a finite [PathProgress.maxLead] on [progress] holds the path back while the
+ * robot is behind it, scaling the feed-forwards by how fast the path time advances, and [timeout] ends a path the
+ * robot is held back from finishing.
+ *
+ * [replan] splices a new trajectory in while following, from any thread; the follower switches to it on its next
+ * [update] and follows it from its start.
+ *
+ * @param extraTime how long to keep holding the end of the path after it finishes
+ * @param lqr model-based gains to follow with instead of the PD gains in the drive's parameters
+ * @param schedule precomputed gains along the trajectory to follow with instead, which take precedence over [lqr]
+ */
+class SwervePathFollower(
+    private val drive: SwerveDrive,
+    trajectory: PathTrajectory,
+    val extraTime: Double = 0.0,
+    val lqr: SwerveLqr? = null,
+    schedule: LqrGainSchedule? = null
+) {
+    constructor(drive: SwerveDrive, path: Path2D, extraTime: Double = 0.0, lqr: SwerveLqr? = null) :
+            this(drive, PathTrajectory(path), extraTime, lqr)
+
+    /**
+     * Follows the trajectory of a [LqrGainSchedule.swerve] schedule with its gains. Corrections are converted to power
+     * with the drive's velocity and heading feed-forward gains.
+     */
+    constructor(drive: SwerveDrive, schedule: LqrGainSchedule, extraTime: Double = 0.0) :
+            this(drive, schedule.trajectory, extraTime, null, schedule)
+
+    var trajectory = trajectory
+        private set
+
+    var schedule = schedule
+        private set
+
+    init {
+        checkSchedule(trajectory, schedule)
+    }
+
+    /**
+     * The time after which [update] reports the path finished.
+     */
+    val duration get() = trajectory.duration + extraTime
+
+    /**
+     * How long after [duration] a robot held back by [progress] may take to finish the path, in seconds, before
+     * [update] reports it finished anyway.
+     */
+    var timeout = 2.0
+        set(value) {
+            require(value >= 0.0) { "The timeout cannot be negative, got $value" }
+            field = value
+        }
+
+    /**
+     * Warps time along the trajectory by the robot's progress. It is only consulted when its
+     * [maxLead][PathProgress.maxLead] is finite.
+     */
+    var progress = PathProgress(trajectory)
+        private set
+
+    /**
+     * The trajectory sample from the last [update].
+     */
+    val setpoint = PathTrajectory.Sample()
+
+    private val state = drive.state
+    private val pose = PoseHistory.Sample()
+    private val translation = Vector2(0.0, 0.0)
+    private val pathError = DoubleArray(LqrGainSchedule.STATES)
+    private val correction = DoubleArray(3)
+
+    // the direction of the path, kept from the last moving sample while the path is stopped
+    private var tangentX = 0.0
+    private var tangentY = 1.0
+    private var prevPositionErrorX = 0.0
+    private var prevPositionErrorY = 0.0
+    private var prevHeadingError = 0.0
+
+    private class Replan(val trajectory: PathTrajectory, val schedule: LqrGainSchedule?)
+
+    private val pendingReplan = AtomicReference<Replan?>()
+    private var startTime = 0.0
+
+    /**
+     * Switches to [trajectory] on the next [update], which follows it from its start, so it should start at the robot's
+     * current pose and velocity, like the paths from [replanPath]. A follower with a [schedule] must be given a
+     * schedule for the new trajectory too.
+     */
+    fun replan(trajectory: PathTrajectory, schedule: LqrGainSchedule? = null) {
+        require((schedule == null) == (this.schedule == null)) {
+            "A replanned trajectory needs a gain schedule exactly when the follower has one"
+        }
+        require(schedule == null || schedule.period == this.schedule?.period) {
+            "A replanned gain schedule must be solved for the same period"
+        }
+        checkSchedule(trajectory, schedule)
+        pendingReplan.set(Replan(trajectory, schedule))
+    }
+
+    private fun checkSchedule(trajectory: PathTrajectory, schedule: LqrGainSchedule?) {
+        require(schedule == null || schedule.trajectory === trajectory && schedule.inputs == 3) {
+            "The schedule must be a swerve schedule for this trajectory"
+        }
+    }
+
+    /**
+     * Drives toward the path at [time] seconds since the path started. After a [replan], the replanned trajectory
+     * starts at the time of the update that picked it up.
+     *
+     * @return true once the path time has reached [duration], or [timeout] after it has passed in real time
+     */
+    fun update(time: Double): Boolean {
+        val replan = pendingReplan.getAndSet(null)
+        if (replan != null) {
+            trajectory = replan.trajectory
+            schedule = replan.schedule
+            progress = PathProgress(replan.trajectory, progress.maxLead, progress.searchWindow)
+            startTime = time
+        }
+
+        val parameters = drive.parameters
+        val schedule = schedule
+        drive.readPose(pose)
+        val elapsed = time - startTime
+        val isWarped = progress.maxLead != Double.POSITIVE_INFINITY
+        val pathTime = if (isWarped) progress.update(elapsed, pose.x, pose.y) else elapsed
+        trajectory.sample(pathTime, setpoint)
+
+        // held back by the robot's progress, the path moves slower than its tables
+        val rate = if (isWarped) progress.rate else 1.0
+        val velocityX = setpoint.velocityX * rate
+        val velocityY = setpoint.velocityY * rate
+        val accelerationX = setpoint.accelerationX * rate * rate
+        val accelerationY = setpoint.accelerationY * rate * rate
+        val headingRate = setpoint.headingRate * rate
+
+        // position error
+        val positionErrorX = setpoint.x - pose.x
+        val positionErrorY = setpoint.y - pose.y
+
+        // heading error
+        val headingError = Math.IEEEremainder(setpoint.heading - drive.fieldHeading.asDegrees, 360.0)
+
+        // the replanned path starts at the robot, so don't kick the d terms with the jump in error
+        if (replan != null) {
+            prevPositionErrorX = positionErrorX
+            prevPositionErrorY = positionErrorY
+            prevHeadingError = headingError
+        }
+
+        val turnControl: Double
+        if (schedule != null) {
+            val speed = Math.hypot(setpoint.velocityX, setpoint.velocityY)
+            if (speed > 1e-6) {
+                tangentX = setpoint.velocityX / speed
+                tangentY = setpoint.velocityY / speed
+            }
+
+            // actual minus path, along and to the right of the path
+            pathError[0] = -(positionErrorX * tangentX + positionErrorY * tangentY)
+            pathError[1] = -(positionErrorX * tangentY - positionErrorY * tangentX)
+            pathError[2] = -headingError
+            schedule.correction(pathTime, pathError, correction)
+
+            val correctionX = correction[0] * tangentX + correction[1] * tangentY
+            val correctionY = correction[0] * tangentY - correction[1] * tangentX
+            translation.set(
+                (velocityX + correctionX) * parameters.kPositionFeedForward +
+                        accelerationX * parameters.kPositionAccelFeedForward,
+                (velocityY + correctionY) * parameters.kPositionFeedForward +
+                        accelerationY * parameters.kPositionAccelFeedForward
+            )
+            turnControl = (headingRate + correction[2]) * parameters.kHeadingFeedForward
+        } else if (lqr != null) {
+            // model feed forward, then position and velocity error together
+            translation.set(
+                lqr.translationFeedForward(velocityX, accelerationX) +
+                        positionErrorX * lqr.kPosition + (velocityX - state.velocityX) * lqr.kVelocity,
+                lqr.translationFeedForward(velocityY, accelerationY) +
+                        positionErrorY * lqr.kPosition + (velocityY - state.velocityY) * lqr.kVelocity
+            )
+
+            val headingRateError = headingRate - drive.headingRate.changePerSecond.asDegrees
+            turnControl = lqr.turnFeedForward(headingRate) + headingError * lqr.kHeading + headingRateError * lqr.kHeadingRate
+        } else {
+            // position d
+            val deltaPositionErrorX = positionErrorX - prevPositionErrorX
+            val deltaPositionErrorY = positionErrorY - prevPositionErrorY
+
+            // velocity and acceleration feed forward, position p and d
+            translation.set(
+                velocityX * parameters.kPositionFeedForward +
+                        accelerationX * parameters.kPositionAccelFeedForward +
+                        positionErrorX * parameters.kpPosition + deltaPositionErrorX * parameters.kdPosition,
+                velocityY * parameters.kPositionFeedForward +
+                        accelerationY * parameters.kPositionAccelFeedForward +
+                        positionErrorY * parameters.kpPosition + deltaPositionErrorY * parameters.kdPosition
+            )
+
+            // heading d
+            val deltaHeadingError = headingError - prevHeadingError
+
+            turnControl = headingRate * parameters.kHeadingFeedForward + headingError * parameters.kpHeading + deltaHeadingError * parameters.kdHeading
+        }
+        prevPositionErrorX = positionErrorX
+        prevPositionErrorY = positionErrorY
+        prevHeadingError = headingError
+
+        // send it
+        drive.drive(translation, turnControl, true)
+
+        return pathTime >= duration || elapsed >= duration + timeout
+    }
+}
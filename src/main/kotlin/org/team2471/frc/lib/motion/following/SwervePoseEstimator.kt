@@ -0,0 +1,223 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.units.Angle
+import org.team2471.frc.lib.units.degrees
+import kotlin.math.cos
+import kotlin.math.hypot
+import kotlin.math.sin
+
+/**
+ * Fuses timestamped absolute pose measurements, such as vision targets, into swerve odometry.
+ *
+ * A measurement is compared against the recorded pose at the time it was captured rather than the current pose, so
+ * camera latency doesn't drag the robot backwards. The estimate at that time is corrected with a scalar Kalman
+ * gain, and the odometry recorded since then is replayed on top of the corrected pose. Because a correction is a
+ * rigid move of the pose, replaying the buffered deltas reduces to moving the whole history by the same rotation and
+ * translation, so each measurement takes constant time however much history has been recorded.
+ *
+ * Corrections are handed to the odometry writer, which moves the current pose and the pose history by them on its
+ * next update, so measurements can be added from a vision thread while odometry runs on its own thread. Heading
+ * corrections are kept as an offset added to the gyro reading, [SwerveDriveState.headingOffset], rather than written
+ * to the gyro, whose new heading would only be read back some updates later.
+ *
+ * Corrections not yet applied are composed with the history when the next measurement is compared, so a measurement
+ * captured before an earlier correction was applied is never corrected twice. Measurements from more than one
+ * thread must be serialized by the caller.
+ */
+class SwervePoseEstimator internal constructor(
+    private val state: SwerveDriveState,
+    private val odometry: SwerveOdometry
+) {
+    private val history = state.poseHistory
+
+    /**
+     * The standard deviation of odometry drift per unit of distance driven.
+     */
+    var odometryStdDevPerDistance = 0.05
+
+    /**
+     * The standard deviation of gyro drift per second.
+     */
+    var headingStdDevPerSecond = 0.1.degrees
+
+    /**
+     * The standard deviations of the pose before the first measurement, or after a [reset].
+     */
+    var initialPositionStdDev = 1.0
+    var initialHeadingStdDev = 10.0.degrees
+
+    /**
+     * The current position variance of the estimate.
+     */
+    var positionVariance = 0.0
+        private set
+
+    /**
+     * The current heading variance of the estimate, in square degrees.
+     */
+    var headingVariance = 0.0
+        private set
+
+    private val measured = PoseHistory.Sample()
+
+    // the correction not yet applied by the odometry writer: a clockwise rotation in degrees about the origin, then a
+    // translation, guarded by lock
+    private val lock = Any()
+    private var pendingRotation = 0.0
+    private var pendingX = 0.0
+    private var pendingY = 0.0
+    @Volatile
+    private var hasPendingCorrection = false
+
+    // used only by the measuring thread, and cleared by it when a reset from another thread is seen
+    private var prevEstimateX = 0.0
+    private var prevEstimateY = 0.0
+    private var prevEstimateTime = Double.NaN
+    @Volatile
+    private var isResetPending = false
+
+    /**
+     * Adds an absolute measurement of the robot's pose.
+     *
+     * @param time the FPGA timestamp at which the measurement was captured, not when it arrived
+     * @param positionStdDev the standard deviation of the measured position
+     * @param heading the measured heading, or null to leave the gyro heading alone
+     * @param headingStdDev the standard deviation of the measured heading
+     * @return false if the measurement was older than the pose history and was ignored
+     */
+    fun addMeasurement(
+        time: Double,
+        x: Double,
+        y: Double,
+        positionStdDev: Double,
+        heading: Angle? = null,
+        headingStdDev: Angle = 5.0.degrees
+    ): Boolean {
+        if (isResetPending) {
+            isResetPending = false
+            prevEstimateTime = Double.NaN
+        }
+
+        // rewind to the measurement time
+        if (!history.lookup(time, measured) || measured.time > time) return false
+
+        // the history already includes every applied correction, so only the pending one is added to the estimate
+        val rotation: Double
+        val offsetX: Double
+        val offsetY: Double
+        synchronized(lock) {
+            rotation = pendingRotation
+            offsetX = pendingX
+            offsetY = pendingY
+        }
+        val pendingRadians = Math.toRadians(rotation)
+        val pendingCos = cos(pendingRadians)
+        val pendingSin = sin(pendingRadians)
+        val estimateX = measured.x * pendingCos + measured.y * pendingSin + offsetX
+        val estimateY = -measured.x * pendingSin + measured.y * pendingCos + offsetY
+        val estimateHeading = measured.heading.asDegrees + rotation
+
+        predict(time, estimateX, estimateY)
+
+        // position correction
+        val positionGain = positionVariance / (positionVariance + positionStdDev * positionStdDev)
+        val correctedX = estimateX + (x - estimateX) * positionGain
+        val correctedY = estimateY + (y - estimateY) * positionGain
+        positionVariance *= 1.0 - positionGain
+
+        // heading correction, which swings the path driven since the measurement around the corrected position
+        var headingCorrection = 0.0
+        if (heading != null) {
+            val headingGain = headingVariance / (headingVariance + headingStdDev.asDegrees * headingStdDev.asDegrees)
+            headingCorrection = Math.IEEEremainder(heading.asDegrees - estimateHeading, 360.0) * headingGain
+            headingVariance *= 1.0 - headingGain
+        }
+
+        // the move from the estimate to the corrected pose, which replays the odometry since the measurement on top
+        // of it: rotate about the estimate, then translate it onto the corrected position
+        val radians = Math.toRadians(headingCorrection)
+        val c = cos(radians)
+        val s = sin(radians)
+        val moveX = correctedX - (estimateX * c + estimateY * s)
+        val moveY = correctedY - (-estimateX * s + estimateY * c)
+
+        // compose it after whatever the odometry writer hasn't applied yet
+        synchronized(lock) {
+            val composedX = pendingX * c + pendingY * s + moveX
+            val composedY = -pendingX * s + pendingY * c + moveY
+            pendingRotation += headingCorrection
+            pendingX = composedX
+            pendingY = composedY
+            hasPendingCorrection = true
+        }
+
+        prevEstimateX = correctedX
+        prevEstimateY = correctedY
+        prevEstimateTime = time
+        return true
+    }
+
+    /**
+     * Forgets previous measurements and any corrections not yet applied, such as when odometry is reset. May be
+     * called from any thread.
+     */
+    fun reset() {
+        synchronized(lock) {
+            pendingRotation = 0.0
+            pendingX = 0.0
+            pendingY = 0.0
+            hasPendingCorrection = false
+        }
+        isResetPending = true
+    }
+
+    /**
+     * Moves the odometry pose, the pose history and the heading offset by the pending correction. Called by the
+     * odometry writer before it integrates an update.
+     */
+    internal fun applyCorrection() {
+        if (!hasPendingCorrection) return
+
+        val rotation: Double
+        val offsetX: Double
+        val offsetY: Double
+        synchronized(lock) {
+            rotation = pendingRotation
+            offsetX = pendingX
+            offsetY = pendingY
+            pendingRotation = 0.0
+            pendingX = 0.0
+            pendingY = 0.0
+            hasPendingCorrection = false
+        }
+
+        val radians = Math.toRadians(rotation)
+        val c = cos(radians)
+        val s = sin(radians)
+        val x = state.odometryX
+        val y = state.odometryY
+        state.odometryX = x * c + y * s + offsetX
+        state.odometryY = -x * s + y * c + offsetY
+        history.transform(rotation, offsetX, offsetY)
+
+        if (rotation != 0.0) {
+            // move the odometry's previous heading with the offset, so the correction isn't integrated as a turn
+            state.headingOffset += rotation
+            odometry.rotateHeading(radians)
+        }
+    }
+
+    // grows the variances by the drift expected since the previous measurement
+    private fun predict(time: Double, estimateX: Double, estimateY: Double) {
+        if (prevEstimateTime.isNaN()) {
+            positionVariance = initialPositionStdDev * initialPositionStdDev
+            headingVariance = initialHeadingStdDev.asDegrees * initialHeadingStdDev.asDegrees
+        } else {
+            val distance = hypot(estimateX - prevEstimateX, estimateY - prevEstimateY)
+            val drift = distance * odometryStdDevPerDistance
+            val headingDrift = Math.abs(time - prevEstimateTime) * headingStdDevPerSecond.asDegrees
+            positionVariance += drift * drift
+            headingVariance += headingDrift * headingDrift
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.math.Vector2
+import org.team2471.frc.lib.motion_profiling.Path2D
+import org.team2471.frc.lib.motion_profiling.PathTrajectory
+import org.team2471.frc.lib.units.Angle
+import kotlin.math.hypot
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Builds a path from the drive's current pose and velocity to [target], for splicing onto a running
+ * [SwervePathFollower] without stopping.
+ *
+ * The path leaves along the robot's velocity, or straight toward the target from rest, and arrives along
+ * [arrivalDirection], or straight from the robot if not given. Its ease starts at the robot's speed and ends at rest,
+ * and its heading starts at the robot's heading and turn rate and ends at [targetHeading], turning the short way.
+ *
+ * @param maxSpeed the path's top speed, which sets its duration
+ * @param minDuration the shortest the path may take, for small corrections
+ */
+fun SwerveDrive.replanPath(
+    target: Vector2,
+    targetHeading: Angle,
+    maxSpeed: Double,
+    arrivalDirection: Vector2? = null,
+    minDuration: Double = 0.25,
+    name: String = "Replanned"
+): Path2D {
+    require(maxSpeed > 0.0) { "The maximum speed must be positive, got $maxSpeed" }
+
+    val start = PoseHistory.Sample()
+    readPose(start)
+    val velocityX = state.velocityX
+    val velocityY = state.velocityY
+    val chordX = target.x - start.x
+    val chordY = target.y - start.y
+    val chord = hypot(chordX, chordY)
+    require(chord > 1e-3) { "The robot is already at $target" }
+
+    // tangents as long as the chord, like the path editor's smooth tangents
+    var startX = chordX
+    var startY = chordY
+    val speed = hypot(velocityX, velocityY)
+    if (speed > 1e-3) {
+        startX = velocityX / speed * chord
+        startY = velocityY / speed * chord
+    }
+    var endX = chordX
+    var endY = chordY
+    if (arrivalDirection != null) {
+        val length = arrivalDirection.length
+        require(length > 0.0) { "The arrival direction has no length" }
+        endX = arrivalDirection.x / length * chord
+        endY = arrivalDirection.y / length * chord
+    }
+
+    val path = Path2D(name)
+    path.addPointAndTangent(start.x, start.y, startX, startY)
+    path.addPointAndTangent(target.x, target.y, endX, endY)
+
+    // a cubic ease peaks at 1.5 times its average speed, and overshoots if it starts faster than 3 times
+    val length = path.length
+    val duration = max(minDuration, 1.5 * length / maxSpeed)
+    path.addEasePointSlopeAndMagnitude(0.0, 0.0, min(speed / length, 3.0 / duration), 1.0)
+    path.addEasePoint(duration, 1.0)
+
+    val heading = fieldHeading.asDegrees
+    val endHeading = heading + Math.IEEEremainder(targetHeading.asDegrees - heading, 360.0)
+    path.headingCurve.storeValueSlopeAndMagnitude(0.0, heading, headingRate.changePerSecond.asDegrees, 1.0)
+    path.addHeadingPoint(duration, endHeading)
+    return path
+}
+
+/**
+ * Replans [follower] from the drive's current pose and velocity to [target] with [replanPath], baked at the
+ * follower's step, and returns the new path. The follower switches to it on its next update.
+ *
+ * Followers with a gain schedule need one for the new trajectory, so replan them with [SwervePathFollower.replan].
+ */
+fun SwerveDrive.replan(
+    follower: SwervePathFollower,
+    target: Vector2,
+    targetHeading: Angle,
+    maxSpeed: Double,
+    arrivalDirection: Vector2? = null
+): Path2D {
+    val path = replanPath(target, targetHeading, maxSpeed, arrivalDirection)
+    follower.replan(PathTrajectory(path, follower.trajectory.step))
+    return path
+}
@@ -0,0 +1,245 @@
+package org.team2471.frc.lib.motion.following
+
+import org.team2471.frc.lib.units.Angle
+import org.team2471.frc.lib.units.asRadians
+import kotlin.math.abs
+import kotlin.math.atan2
+import kotlin.math.cos
+import kotlin.math.hypot
+import kotlin.math.sin
+
+/**
+ * Converts robot-relative translation and turn commands into module setpoints that the modules can actually follow.
+ *
+ * Where [SwerveKinematics] jumps straight to the commanded motion, the generator moves from the previous command
+ * toward the new one only as far as every module can steer and accelerate within one tick. Because all modules take
+ * the same fraction of the step, the robot keeps the commanded shape of motion instead of each module clipping on its
+ * own. Commands that would saturate a module are scaled down as a whole, preserving the ratio of translation to
+ * rotation. Once the step is found, the translation is rotated by half of the turn actually commanded for the tick,
+ * so that the robot doesn't drift sideways while it spins.
+ *
+ * Each step costs a fixed number of module evaluations and allocates nothing, so the generator fits in the drive
+ * loop's budget however far the command jumps.
+ *
+ * Enable it for a drive with `drive.state.setpointGenerator = SwerveSetpointGenerator(drive)`.
+ *
+ * @param maxSpeed the speed of a module at full power, in distance per second, used to work out how far the robot
+ * turns in a tick
+ * @param positionScale multiplies the module positions into the units of [maxSpeed], as
+ * [SwerveDriveState.modulePositionScale]
+ */
+class SwerveSetpointGenerator(
+    private val modules: Array<SwerveDrive.Module>,
+    val maxSpeed: Double,
+    val positionScale: Double = 1.0
+) {
+    /**
+     * A generator for [drive], taking the module speed at full power from its position feed-forward and the module
+     * position units from its state.
+     */
+    constructor(drive: SwerveDrive) :
+            this(drive.modules, 1.0 / drive.parameters.kPositionFeedForward, drive.state.modulePositionScale)
+
+
+    /**
+     * How fast a module can steer, in degrees per second.
+     */
+    var maxSteerRate = 720.0
+
+    /**
+     * How fast a module's drive power may change, per second.
+     */
+    var maxDriveAcceleration = 5.0
+
+    /**
+     * The drive power of each module from the last call to [calculate].
+     */
+    val speeds = DoubleArray(modules.size)
+
+    /**
+     * Whether the last command was to stand still.
+     */
+    val isStopped get() = prevX == 0.0 && prevY == 0.0 && prevTurn == 0.0
+
+    private val moduleX = DoubleArray(modules.size) { modules[it].modulePosition.x }
+    private val moduleY = DoubleArray(modules.size) { modules[it].modulePosition.y }
+
+    // unit vectors of the turn contribution, from the pivot they were computed for
+    private val turnX = DoubleArray(modules.size)
+    private val turnY = DoubleArray(modules.size)
+    private var pivotX = Double.NaN
+    private var pivotY = Double.NaN
+    private var meanRadius = 0.0
+
+    // module vectors of the previous and the wanted command
+    private val fromX = DoubleArray(modules.size)
+    private val fromY = DoubleArray(modules.size)
+    private val toX = DoubleArray(modules.size)
+    private val toY = DoubleArray(modules.size)
+
+    private var prevX = 0.0
+    private var prevY = 0.0
+    private var prevTurn = 0.0
+    private val prevAngles = DoubleArray(modules.size) // radians
+    private var prevTime = Double.NaN
+    private var isInitialized = false
+
+    init {
+        require(maxSpeed > 0.0 && maxSpeed.isFinite()) { "The maximum module speed must be positive, got $maxSpeed" }
+        require(positionScale > 0.0) { "The position scale must be positive, got $positionScale" }
+    }
+
+    /**
+     * Forgets the previous command, so the next one ramps up from standing still with the modules where they are.
+     */
+    fun reset() {
+        prevX = 0.0
+        prevY = 0.0
+        prevTurn = 0.0
+        prevTime = Double.NaN
+        isInitialized = false
+    }
+
+    /**
+     * Sets the angle setpoint of each module and fills [speeds] with the drive powers for the next tick.
+     *
+     * @param time the current time in seconds, used to measure the tick
+     */
+    fun calculate(
+        translationX: Double,
+        translationY: Double,
+        turn: Double,
+        pivotX: Double,
+        pivotY: Double,
+        time: Double
+    ) {
+        if (!isInitialized) {
+            for (i in modules.indices) {
+                prevAngles[i] = modules[i].angle.asRadians
+            }
+            isInitialized = true
+        }
+        val dt = if (prevTime.isNaN()) NOMINAL_DT else (time - prevTime).coerceIn(MIN_DT, MAX_DT)
+        prevTime = time
+        updatePivot(pivotX, pivotY)
+
+        var x = translationX
+        var y = translationY
+
+        // desaturate, keeping the ratio of translation to rotation
+        var maxGoal = 0.0
+        for (i in modules.indices) {
+            maxGoal = Math.max(maxGoal, hypot(x + turnX[i] * turn, y + turnY[i] * turn))
+        }
+        val scale = if (maxGoal > 1.0) 1.0 / maxGoal else 1.0
+        x *= scale
+        y *= scale
+        val wantedTurn = turn * scale
+
+        // find the furthest step toward the wanted command that every module can make
+        for (i in modules.indices) {
+            fromX[i] = prevX + turnX[i] * prevTurn
+            fromY[i] = prevY + turnY[i] * prevTurn
+            toX[i] = x + turnX[i] * wantedTurn
+            toY[i] = y + turnY[i] * wantedTurn
+        }
+        val maxSteer = Math.toRadians(maxSteerRate) * dt
+        val maxSpeedChange = maxDriveAcceleration * dt
+        var step = 1.0
+        for (i in modules.indices) {
+            step = limitStep(i, step, maxSteer, maxSpeedChange)
+        }
+
+        prevX += (x - prevX) * step
+        prevY += (y - prevY) * step
+        prevTurn += (wantedTurn - prevTurn) * step
+
+        // command the translation at the heading halfway through the turn commanded for this tick, after scaling and
+        // the step limit, keeping the command itself unrotated so the next step ramps from it
+        var commandX = prevX
+        var commandY = prevY
+        if (meanRadius > 0.0) {
+            val halfRotation = prevTurn * maxSpeed / (meanRadius * positionScale) * dt / 2.0
+            val c = cos(halfRotation)
+            val s = sin(halfRotation)
+            commandX = prevX * c - prevY * s
+            commandY = prevX * s + prevY * c
+        }
+
+        for (i in modules.indices) {
+            val module = modules[i]
+            val moduleX = commandX + turnX[i] * prevTurn
+            val moduleY = commandY + turnY[i] * prevTurn
+            var speed = hypot(moduleX, moduleY)
+
+            var angle = prevAngles[i]
+            if (speed < MIN_MODULE_SPEED) {
+                speed = 0.0
+            } else {
+                angle = atan2(moduleX, moduleY)
+                // drive backwards rather than steer more than a quarter turn
+                if (abs(Math.IEEEremainder(angle - prevAngles[i], 2.0 * Math.PI)) > Math.PI / 2.0) {
+                    angle = Math.IEEEremainder(angle + Math.PI, 2.0 * Math.PI)
+                    speed = -speed
+                }
+            }
+            prevAngles[i] = angle
+
+            // Number.radians would box, so build the angle directly
+            module.angleSetpoint = Angle(Math.toDegrees(angle))
+            speeds[i] = speed * abs(cos(angle - module.angle.asRadians))
+        }
+    }
+
+    private fun updatePivot(x: Double, y: Double) {
+        if (x == pivotX && y == pivotY) return
+        pivotX = x
+        pivotY = y
+        var radiusSum = 0.0
+        for (i in modules.indices) {
+            // the turn contribution is perpendicular to the line from the pivot to the module
+            val perpendicularX = moduleY[i] - y
+            val perpendicularY = -(moduleX[i] - x)
+            val length = hypot(perpendicularX, perpendicularY)
+            turnX[i] = perpendicularX / length
+            turnY[i] = perpendicularY / length
+            radiusSum += length
+        }
+        meanRadius = radiusSum / modules.size
+    }
+
+    // the largest step up to [limit] toward the wanted command that module [i] can make in one tick
+    private fun limitStep(i: Int, limit: Double, maxSteer: Double, maxSpeedChange: Double): Double {
+        if (isFeasible(i, limit, maxSteer, maxSpeedChange)) return limit
+        var low = 0.0
+        var high = limit
+        repeat(SEARCH_ITERATIONS) {
+            val mid = (low + high) / 2.0
+            if (isFeasible(i, mid, maxSteer, maxSpeedChange)) low = mid else high = mid
+        }
+        return low
+    }
+
+    private fun isFeasible(i: Int, step: Double, maxSteer: Double, maxSpeedChange: Double): Boolean {
+        val x = fromX[i] + (toX[i] - fromX[i]) * step
+        val y = fromY[i] + (toY[i] - fromY[i]) * step
+        val fromSpeed = hypot(fromX[i], fromY[i])
+        val speed = hypot(x, y)
+        if (abs(speed - fromSpeed) > maxSpeedChange) return false
+
+        // a module that is stopped, or is stopping, may point anywhere
+        if (fromSpeed < MIN_MODULE_SPEED || speed < MIN_MODULE_SPEED) return true
+        val steer = abs(Math.IEEEremainder(atan2(x, y) - atan2(fromX[i], fromY[i]), Math.PI))
+        return steer <= maxSteer
+    }
+
+    private companion object {
+        const val NOMINAL_DT = 0.02
+        const val MIN_DT = 0.001
+        const val MAX_DT = 0.1
+        const val MIN_MODULE_SPEED = 1e-6
+
+        // bisection steps per module, which bounds the cost of a tick
+        const val SEARCH_ITERATIONS = 10
+    }
+}
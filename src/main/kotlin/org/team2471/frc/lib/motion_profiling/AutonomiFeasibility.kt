@@ -0,0 +1,179 @@
+package org.team2471.frc.lib.motion_profiling
+
+import org.team2471.frc.lib.math.Vector2
+import org.team2471.frc.lib.motion_profiling.following.ArcadeParameters
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.hypot
+import kotlin.math.sin
+
+/**
+ * What a drivetrain can do, for checking paths with [analyzeFeasibility]. Limits which don't apply can be left
+ * infinite.
+ *
+ * @property maxSpeed the robot's top speed, in distance per second
+ * @property maxAcceleration the most the robot can accelerate in any direction, in distance per second squared
+ * @property maxCurvature the tightest turn, in radians per unit of distance
+ * @property maxTurnRate the fastest the robot can turn, in degrees per second
+ * @property maxWheelSpeed the top speed of an arcade side or swerve module, in distance per second
+ */
+data class FeasibilityLimits(
+    val maxSpeed: Double,
+    val maxAcceleration: Double,
+    val maxCurvature: Double = Double.POSITIVE_INFINITY,
+    val maxTurnRate: Double = Double.POSITIVE_INFINITY,
+    val maxWheelSpeed: Double = maxSpeed
+)
+
+/**
+ * A limit a path exceeds.
+ *
+ * @property time when the path first exceeds the limit
+ * @property peak the largest value the path reaches
+ */
+data class LimitViolation(val quantity: String, val time: Double, val peak: Double, val limit: Double) {
+    override fun toString() = "$quantity peaks at ${"%.2f".format(peak)} (limit ${"%.2f".format(limit)}), " +
+            "first exceeded at ${"%.2f".format(time)}s"
+}
+
+/**
+ * The peaks of one path of an [Autonomi], and the limits it exceeds.
+ *
+ * @property duration the time to complete the path
+ * @property error why the path couldn't be analyzed, if it couldn't
+ */
+data class PathFeasibility(
+    val autonomous: String,
+    val path: String,
+    val duration: Double,
+    val peakSpeed: Double,
+    val peakAcceleration: Double,
+    val peakCurvature: Double,
+    val peakTurnRate: Double,
+    val peakWheelSpeed: Double,
+    val violations: List<LimitViolation>,
+    val error: String? = null
+) {
+    val isFeasible get() = error == null && violations.isEmpty()
+}
+
+/**
+ * Checks every path of every autonomous against [limits] in parallel on [pool], one path per task, and returns a
+ * report per path in the order of the autonomi.
+ *
+ * Wheel speeds use the track width of [ArcadeParameters] when the autonomi has them, and module speeds use
+ * [modulePositions] for a swerve, relative to the robot's center; with neither, wheel speed is the robot's speed.
+ *
+ * @param step the time between samples of each path, in seconds
+ */
+fun Autonomi.analyzeFeasibility(
+    limits: FeasibilityLimits,
+    modulePositions: List<Vector2> = emptyList(),
+    step: Double = 0.01,
+    pool: ForkJoinPool = ForkJoinPool.commonPool()
+): List<PathFeasibility> {
+    val parameters = drivetrainParameters
+    val trackWidth = if (parameters is ArcadeParameters) parameters.trackWidth * parameters.scrubFactor else 0.0
+    val moduleX = DoubleArray(modulePositions.size) { modulePositions[it].x }
+    val moduleY = DoubleArray(modulePositions.size) { modulePositions[it].y }
+
+    val tasks = ArrayList<Callable<PathFeasibility>>()
+    for (autonomousName in autonomousNames) {
+        val autonomous = get(autonomousName)
+        for (pathName in autonomous.pathNames) {
+            val path = autonomous.get(pathName)
+            tasks += Callable { analyzePath(autonomousName, pathName, path, limits, trackWidth, moduleX, moduleY, step) }
+        }
+    }
+
+    return pool.invokeAll(tasks).map { future ->
+        try {
+            future.get()
+        } catch (exception: ExecutionException) {
+            throw exception.cause ?: exception
+        }
+    }
+}
+
+// tracks the peak of one quantity and when it first went over its limit
+private class Peak(val quantity: String, val limit: Double) {
+    var peak = 0.0
+    var firstViolation = Double.NaN
+
+    fun record(time: Double, value: Double) {
+        if (value > peak) peak = value
+        if (value > limit && firstViolation.isNaN()) firstViolation = time
+    }
+
+    fun violation() = if (firstViolation.isNaN()) null else LimitViolation(quantity, firstViolation, peak, limit)
+}
+
+private fun analyzePath(
+    autonomousName: String,
+    pathName: String,
+    path: Path2D,
+    limits: FeasibilityLimits,
+    trackWidth: Double,
+    moduleX: DoubleArray,
+    moduleY: DoubleArray,
+    step: Double
+): PathFeasibility {
+    val trajectory = try {
+        PathTrajectory(path, step)
+    } catch (exception: IllegalArgumentException) {
+        return PathFeasibility(autonomousName, pathName, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, emptyList(), exception.message)
+    }
+
+    val speed = Peak("speed", limits.maxSpeed)
+    val acceleration = Peak("acceleration", limits.maxAcceleration)
+    val curvature = Peak("curvature", limits.maxCurvature)
+    val turnRate = Peak("turn rate", limits.maxTurnRate)
+    val wheelSpeed = Peak("wheel speed", limits.maxWheelSpeed)
+
+    for (i in 0 until trajectory.size) {
+        val time = trajectory.timeAt(i)
+        val velocityX = trajectory.velocityX[i]
+        val velocityY = trajectory.velocityY[i]
+        val pathSpeed = hypot(velocityX, velocityY)
+        speed.record(time, pathSpeed)
+        acceleration.record(time, hypot(trajectory.accelerationX[i], trajectory.accelerationY[i]))
+        curvature.record(time, abs(trajectory.curvature[i]))
+        turnRate.record(time, abs(trajectory.headingRate[i]))
+
+        if (moduleX.isNotEmpty()) {
+            // field velocity into the robot's frame, plus the turn, clockwise in radians per second
+            val heading = Math.toRadians(trajectory.heading[i])
+            val robotX = velocityX * cos(heading) - velocityY * sin(heading)
+            val robotY = velocityX * sin(heading) + velocityY * cos(heading)
+            val turn = Math.toRadians(trajectory.headingRate[i])
+            for (j in moduleX.indices) {
+                wheelSpeed.record(time, hypot(robotX + turn * moduleY[j], robotY - turn * moduleX[j]))
+            }
+        } else {
+            // the outside of a turn drives faster
+            val outside = abs(trajectory.curvature[i]) * trackWidth / 2.0
+            wheelSpeed.record(time, pathSpeed * (1.0 + outside))
+        }
+    }
+
+    return PathFeasibility(
+        autonomousName,
+        pathName,
+        trajectory.duration,
+        speed.peak,
+        acceleration.peak,
+        curvature.peak,
+        turnRate.peak,
+        wheelSpeed.peak,
+        listOfNotNull(
+            speed.violation(),
+            acceleration.violation(),
+            curvature.violation(),
+            turnRate.violation(),
+            wheelSpeed.violation()
+        )
+    )
+}
@@ -0,0 +1,150 @@
+package org.team2471.frc.lib.motion_profiling
+
+import kotlin.math.ceil
+import kotlin.math.hypot
+import kotlin.math.min
+
+/**
+ * A [Path2D] sampled ahead of time into tables of position, velocity, acceleration and heading against time.
+ *
+ * Evaluating a path walks its curves and ease, and differentiating it on the fly amplifies loop jitter. A baked
+ * trajectory does that work once, taking derivatives with central differences a fraction of a [step] wide, so a
+ * follower reads exact feed-forward values with one constant-time, allocation-free [sample].
+ *
+ * Paths are mutable and not thread safe, so bake the path on one thread before handing the trajectory around; the
+ * trajectory itself is immutable.
+ *
+ * @param step the time between samples, in seconds
+ */
+class PathTrajectory(path: Path2D, val step: Double = 0.01) {
+    /**
+     * The time it takes to drive the path at its speed.
+     */
+    val duration = path.durationWithSpeed
+
+    /**
+     * The number of samples, from time zero to [duration].
+     */
+    val size: Int
+
+    // field coordinates, as returned by Path2D.getPosition
+    val x: DoubleArray
+    val y: DoubleArray
+    val velocityX: DoubleArray
+    val velocityY: DoubleArray
+    val accelerationX: DoubleArray
+    val accelerationY: DoubleArray
+
+    /**
+     * The absolute heading of the robot, in degrees, as returned by [Path2D.getAbsoluteHeadingDegreesAt].
+     */
+    val heading: DoubleArray
+
+    /**
+     * The rate of change of [heading], in degrees per second.
+     */
+    val headingRate: DoubleArray
+
+    /**
+     * The distance travelled along the path.
+     */
+    val distance: DoubleArray
+
+    /**
+     * The signed curvature of the path, positive when turning clockwise, in radians per unit of distance.
+     */
+    val curvature: DoubleArray
+
+    class Sample {
+        var time = 0.0
+        var x = 0.0
+        var y = 0.0
+        var velocityX = 0.0
+        var velocityY = 0.0
+        var accelerationX = 0.0
+        var accelerationY = 0.0
+        var heading = 0.0
+        var headingRate = 0.0
+        var distance = 0.0
+        var curvature = 0.0
+    }
+
+    init {
+        require(step > 0.0) { "The step must be positive, got $step" }
+        require(duration > 0.0) { "Cannot bake path ${path.name} with no duration" }
+
+        size = ceil(duration / step - 1e-9).toInt() + 1
+        x = DoubleArray(size)
+        y = DoubleArray(size)
+        velocityX = DoubleArray(size)
+        velocityY = DoubleArray(size)
+        accelerationX = DoubleArray(size)
+        accelerationY = DoubleArray(size)
+        heading = DoubleArray(size)
+        headingRate = DoubleArray(size)
+        distance = DoubleArray(size)
+        curvature = DoubleArray(size)
+
+        val h = min(step, duration) / 4.0
+        for (i in 0 until size) {
+            val t = timeAt(i)
+            val position = path.getPosition(t)
+            x[i] = position.x
+            y[i] = position.y
+            heading[i] = path.getAbsoluteHeadingDegreesAt(t)
+
+            // keep the difference window on the path at either end, then carry the derivative back to t
+            val center = t.coerceIn(h, duration - h)
+            val before = path.getPosition(center - h)
+            val middle = if (center == t) position else path.getPosition(center)
+            val after = path.getPosition(center + h)
+            accelerationX[i] = (after.x - 2.0 * middle.x + before.x) / (h * h)
+            accelerationY[i] = (after.y - 2.0 * middle.y + before.y) / (h * h)
+            velocityX[i] = (after.x - before.x) / (2.0 * h) + accelerationX[i] * (t - center)
+            velocityY[i] = (after.y - before.y) / (2.0 * h) + accelerationY[i] * (t - center)
+
+            val headingBefore = path.getAbsoluteHeadingDegreesAt(center - h)
+            val headingAfter = path.getAbsoluteHeadingDegreesAt(center + h)
+            headingRate[i] = (headingAfter - headingBefore) / (2.0 * h)
+
+            distance[i] = if (i == 0) 0.0 else distance[i - 1] + hypot(x[i] - x[i - 1], y[i] - y[i - 1])
+
+            val speed = hypot(velocityX[i], velocityY[i])
+            curvature[i] = if (speed < 1e-6) 0.0 else
+                (velocityY[i] * accelerationX[i] - velocityX[i] * accelerationY[i]) / (speed * speed * speed)
+        }
+    }
+
+    /**
+     * The time of the sample at [index].
+     */
+    fun timeAt(index: Int) = if (index >= size - 1) duration else index * step
+
+    /**
+     * Linearly interpolates the trajectory at [time] into [out]. Times outside of the trajectory return its ends.
+     *
+     * @return [out]
+     */
+    fun sample(time: Double, out: Sample): Sample {
+        val clamped = time.coerceIn(0.0, duration)
+        val i = if (size < 2) 0 else (clamped / step).toInt().coerceIn(0, size - 2)
+        val j = min(i + 1, size - 1)
+        val span = timeAt(j) - timeAt(i)
+        val k = if (span <= 0.0) 0.0 else ((clamped - timeAt(i)) / span).coerceIn(0.0, 1.0)
+
+        out.time = clamped
+        out.x = lerp(x, i, j, k)
+        out.y = lerp(y, i, j, k)
+        out.velocityX = lerp(velocityX, i, j, k)
+        out.velocityY = lerp(velocityY, i, j, k)
+        out.accelerationX = lerp(accelerationX, i, j, k)
+        out.accelerationY = lerp(accelerationY, i, j, k)
+        out.heading = lerp(heading, i, j, k)
+        out.headingRate = lerp(headingRate, i, j, k)
+        out.distance = lerp(distance, i, j, k)
+        out.curvature = lerp(curvature, i, j, k)
+        return out
+    }
+
+    private fun lerp(values: DoubleArray, i: Int, j: Int, k: Double) = values[i] + (values[j] - values[i]) * k
+}
@@ -0,0 +1,54 @@
+package org.team2471.frc.lib.testing
+
+import org.team2471.frc.lib.math.Vector2
+import org.team2471.frc.lib.motion.following.SimulatedSwerveDrive
+import org.team2471.frc.lib.motion.following.SwerveDrive
+import org.team2471.frc.lib.motion.following.drive
+import org.team2471.frc.lib.motion.following.stop
+import org.team2471.frc.lib.units.degrees
+import org.team2471.frc.lib.util.measureAllocatedBytes
+
+/**
+ * Drives a simulated robot with a turning command for [iterations] ticks of [period] seconds, each a call to [drive]
+ * that records odometry and a simulation step, and checks that a tick allocates at most [maxBytesPerTick] on average.
+ *
+ * Driving and odometry allocate nothing once warmed up, including the [SwerveDrive.position] and
+ * [SwerveDrive.velocity] snapshots, which are updated in place.
+ *
+ * @return the average number of bytes allocated per tick
+ * @throws IllegalStateException if a tick allocates more than [maxBytesPerTick]
+ */
+fun SimulatedSwerveDrive.testDriveAllocations(
+    iterations: Int = 1000,
+    period: Double = 0.02,
+    maxBytesPerTick: Double = 0.0
+): Double {
+    val translation = Vector2(0.0, 0.5)
+    try {
+        reset(Vector2(0.0, 0.0), 0.0.degrees)
+
+        // warm up, so the drive's kinematics and odometry are built and the loop is compiled
+        repeat(iterations) {
+            tick(translation, period)
+        }
+
+        val bytes = measureAllocatedBytes {
+            repeat(iterations) {
+                tick(translation, period)
+            }
+        }
+        val bytesPerTick = bytes.toDouble() / iterations
+        check(bytesPerTick <= maxBytesPerTick) {
+            "Driving allocated $bytesPerTick bytes per tick, more than $maxBytesPerTick"
+        }
+        return bytesPerTick
+    } finally {
+        stop()
+    }
+}
+
+private fun SimulatedSwerveDrive.tick(translation: Vector2, period: Double) {
+    drive(translation, 0.1)
+    step(period)
+    clock.advance(period)
+}
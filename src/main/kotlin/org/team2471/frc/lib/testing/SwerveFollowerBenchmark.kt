@@ -0,0 +1,76 @@
+package org.team2471.frc.lib.testing
+
+import org.team2471.frc.lib.motion.following.SimulatedSwerveDrive
+import org.team2471.frc.lib.motion.following.SwerveLqr
+import org.team2471.frc.lib.motion.following.SwervePathFollower
+import org.team2471.frc.lib.motion.following.stop
+import org.team2471.frc.lib.motion_profiling.Path2D
+import org.team2471.frc.lib.motion_profiling.PathTrajectory
+import org.team2471.frc.lib.units.degrees
+
+/**
+ * The cost of following a path, in microseconds.
+ *
+ * @property setupMicros the time to bake the path and solve any gains, once per path
+ * @property averageMicros the average time of one follower tick
+ * @property maxMicros the slowest follower tick
+ * @property driveBytesPerTick the bytes allocated by a tick of driving and odometry, from [testDriveAllocations]
+ */
+data class FollowerBenchmark(
+    val ticks: Int,
+    val setupMicros: Double,
+    val averageMicros: Double,
+    val maxMicros: Double,
+    val driveBytesPerTick: Double = 0.0
+)
+
+/**
+ * Measures how long [SwervePathFollower] takes per tick to follow [path] on a simulated [drive], with the PD gains in
+ * the drive's parameters, or with the gains made by [lqr] if given. Only the follower is timed, not the simulation.
+ * Run it on the roboRIO to check that a follower fits the loop.
+ *
+ * The path is followed [warmUpRuns] times first, so that the timed run is compiled. Before that, the drive is checked
+ * with [testDriveAllocations], which throws if driving allocates.
+ */
+fun benchmarkSwerveFollower(
+    drive: SimulatedSwerveDrive,
+    path: Path2D,
+    lqr: (() -> SwerveLqr)? = null,
+    period: Double = 0.02,
+    warmUpRuns: Int = 3
+): FollowerBenchmark {
+    val driveBytesPerTick = drive.testDriveAllocations(period = period)
+    var result = FollowerBenchmark(0, 0.0, 0.0, 0.0, driveBytesPerTick)
+    repeat(warmUpRuns + 1) {
+        val setupStart = System.nanoTime()
+        val trajectory = PathTrajectory(path)
+        val gains = lqr?.invoke()
+        val setupMicros = (System.nanoTime() - setupStart) / 1000.0
+
+        drive.reset(path.getPosition(0.0), path.getAbsoluteHeadingDegreesAt(0.0).degrees)
+        val follower = SwervePathFollower(drive, trajectory, lqr = gains)
+        var ticks = 0
+        var totalNanos = 0L
+        var maxNanos = 0L
+        var t = 0.0
+        while (true) {
+            val start = System.nanoTime()
+            val isFinished = follower.update(t)
+            val nanos = System.nanoTime() - start
+            ticks++
+            totalNanos += nanos
+            maxNanos = Math.max(maxNanos, nanos)
+
+            if (isFinished) break
+            drive.step(period)
+            drive.clock.advance(period)
+            t += period
+        }
+        drive.stop()
+
+        result = FollowerBenchmark(
+            ticks, setupMicros, totalNanos / 1000.0 / ticks, maxNanos / 1000.0, driveBytesPerTick
+        )
+    }
+    return result
+}
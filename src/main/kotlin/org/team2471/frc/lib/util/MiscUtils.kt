@@ -3,6 +3,7 @@ package org.team2471.frc.lib.util
 import edu.wpi.first.wpilibj.RobotController
 import edu.wpi.first.wpilibj.Timer
 import java.lang.System.currentTimeMillis
+import java.lang.management.ManagementFactory
 
 /**
  * Executes the given block and returns elapsed time in seconds.
@@ -22,6 +23,17 @@ inline fun measureTimeFPGAMicros(body: () -> Unit): Long {
     return RobotController.getFPGATime() - start
 }
 
+/**
+ * Executes the given block and returns the number of bytes allocated by the current thread while it ran.
+ */
+inline fun measureAllocatedBytes(body: () -> Unit): Long {
+    val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    val threadId = Thread.currentThread().id
+    val start = threadMXBean.getThreadAllocatedBytes(threadId)
+    body()
+    return threadMXBean.getThreadAllocatedBytes(threadId) - start
+}
+
 class Timer {
     var startTime: Long = 0
 